@@ -0,0 +1,418 @@
+package dk.carolus.zpp.nativelib;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Pure-Java implementation of the ZppImage C++ class, which
+ * fetches ImageProperties and tiles from a ptiff file according
+ * to the Zoomify protocol.
+ * <p>
+ * Jpeg compressed tiles are exported directly, by combining the jpeg tables
+ * of the tiff directory with the raw tile. Tiles that need to be cropped, and
+ * uncompressed or deflate compressed tiles, are compressed using ImageIO.
+ * Other compression types, e.g. LZW, are not supported.
+ *
+ * @author peder
+ */
+class JavaZppImage {
+
+  // Tiff tags
+  static final int TAG_IMAGE_WIDTH        = 256;
+  static final int TAG_IMAGE_LENGTH       = 257;
+  static final int TAG_BITS_PER_SAMPLE    = 258;
+  static final int TAG_COMPRESSION        = 259;
+  static final int TAG_SAMPLES_PER_PIXEL  = 277;
+  static final int TAG_PREDICTOR          = 317;
+  static final int TAG_TILE_WIDTH         = 322;
+  static final int TAG_TILE_LENGTH        = 323;
+  static final int TAG_TILE_OFFSETS       = 324;
+  static final int TAG_TILE_BYTE_COUNTS   = 325;
+  static final int TAG_JPEG_TABLES        = 347;
+
+  // Tiff compression types
+  static final int COMPRESSION_NONE       = 1;
+  static final int COMPRESSION_JPEG       = 7;
+  static final int COMPRESSION_DEFLATE    = 8;
+  static final int COMPRESSION_ADOBE_DEFLATE = 32946;
+
+  // Sizes of the tiff field types, indexed by type
+  static final int[] TYPE_SIZES = { 0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8, 4, 0, 0, 8, 8, 8 };
+
+  String imagePath;
+  FileChannel channel;
+  ByteOrder byteOrder;
+  int tileSize;
+  int tileNo;
+
+  // The pyramid levels, largest first as in the tiff
+  List<Level> levels = new ArrayList<>();
+
+  /**
+   * Constructor
+   * @param path the path to the ptiff image
+   */
+  JavaZppImage(String path) throws IOException {
+    imagePath = path;
+    channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+    try {
+      openImage();
+    } catch (IOException ex) {
+      close();
+      throw ex;
+    }
+  }
+
+  /**
+   * Reads the tiff directories and caches the dimensions for the available
+   * images in the pyramid tiff.
+   */
+  void openImage() throws IOException {
+    ByteBuffer header = read(0, 8);
+    if (header.get(0) == 'I' && header.get(1) == 'I') {
+      byteOrder = ByteOrder.LITTLE_ENDIAN;
+    } else if (header.get(0) == 'M' && header.get(1) == 'M') {
+      byteOrder = ByteOrder.BIG_ENDIAN;
+    } else {
+      throw new IOException("Not a tiff image: " + imagePath);
+    }
+    header.order(byteOrder);
+    if (header.getShort(2) != 42) {
+      throw new IOException("Unsupported tiff image: " + imagePath);
+    }
+
+    // Zoomify does not accept arbitrary numbers of resolutions. The lowest
+    // level must be the largest size that can fit within a single tile
+    long offset = header.getInt(4) & 0xffffffffL;
+    while (offset != 0) {
+      Level level = readLevel(offset);
+      if (levels.isEmpty()) {
+        if (level.tileWidth == 0 && level.tileHeight == 0) {
+          throw new IOException("TIFF image is not tiled");
+        }
+        if (level.tileWidth != level.tileHeight) {
+          throw new IOException("Invalid Zoomify tile size " + level.tileWidth + "x" + level.tileHeight);
+        }
+        tileSize = level.tileWidth;
+      }
+      levels.add(level);
+      tileNo += level.getHorizTileNo() * level.getVertTileNo();
+      if (level.width <= tileSize && level.height <= tileSize) {
+        break;
+      }
+      offset = level.nextOffset;
+    }
+  }
+
+  /**
+   * Reads the tiff directory at the given offset
+   * @param offset the offset of the tiff directory
+   * @return the pyramid level
+   */
+  Level readLevel(long offset) throws IOException {
+    int entryNo = read(offset, 2).getShort() & 0xffff;
+    ByteBuffer entries = read(offset + 2, entryNo * 12 + 4);
+
+    Map<Integer, long[]> fields = new HashMap<>();
+    Level level = new Level();
+    for (int i = 0; i < entryNo; i++) {
+      int tag   = entries.getShort(i * 12) & 0xffff;
+      int type  = entries.getShort(i * 12 + 2) & 0xffff;
+      int count = entries.getInt(i * 12 + 4);
+      // Only the jpeg tables and SHORT and LONG fields are used
+      if (tag != TAG_JPEG_TABLES && type != 3 && type != 4) {
+        continue;
+      }
+      int size  = (type < TYPE_SIZES.length) ? TYPE_SIZES[type] * count : 0;
+      ByteBuffer value = (size <= 4)
+          ? read(offset + 2 + i * 12 + 8, 4)
+          : read(entries.getInt(i * 12 + 8) & 0xffffffffL, size);
+      if (tag == TAG_JPEG_TABLES) {
+        level.jpegTables = new byte[count];
+        value.get(level.jpegTables);
+      } else {
+        long[] values = new long[count];
+        for (int v = 0; v < count; v++) {
+          values[v] = (type == 3) ? value.getShort(v * 2) & 0xffff : value.getInt(v * 4) & 0xffffffffL;
+        }
+        fields.put(tag, values);
+      }
+    }
+
+    level.width           = getField(fields, TAG_IMAGE_WIDTH, 0);
+    level.height          = getField(fields, TAG_IMAGE_LENGTH, 0);
+    level.tileWidth       = getField(fields, TAG_TILE_WIDTH, 0);
+    level.tileHeight      = getField(fields, TAG_TILE_LENGTH, 0);
+    level.compression     = getField(fields, TAG_COMPRESSION, COMPRESSION_NONE);
+    level.channels        = getField(fields, TAG_SAMPLES_PER_PIXEL, 1);
+    level.bitsPerSample   = getField(fields, TAG_BITS_PER_SAMPLE, 8);
+    level.predictor       = getField(fields, TAG_PREDICTOR, 1);
+    level.tileOffsets     = fields.containsKey(TAG_TILE_OFFSETS) ? fields.get(TAG_TILE_OFFSETS) : new long[0];
+    level.tileByteCounts  = fields.containsKey(TAG_TILE_BYTE_COUNTS) ? fields.get(TAG_TILE_BYTE_COUNTS) : new long[0];
+    level.nextOffset      = entries.getInt(entryNo * 12) & 0xffffffffL;
+    return level;
+  }
+
+  /**
+   * Returns the first value of the given field, or the default value if undefined
+   */
+  int getField(Map<Integer, long[]> fields, int tag, int defaultValue) {
+    long[] values = fields.get(tag);
+    return (values == null || values.length == 0) ? defaultValue : (int)values[0];
+  }
+
+  /**
+   * Reads the given number of bytes at the given file offset
+   * @param offset the file offset
+   * @param length the number of bytes to read
+   * @return the data, using the byte order of the tiff
+   */
+  ByteBuffer read(long offset, int length) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(length);
+    while (buf.hasRemaining()) {
+      if (channel.read(buf, offset + buf.position()) == -1) {
+        throw new IOException("Unexpected end of tiff image: " + imagePath);
+      }
+    }
+    buf.flip();
+    return buf.order((byteOrder == null) ? ByteOrder.LITTLE_ENDIAN : byteOrder);
+  }
+
+  /**
+   * Closes the tiff image
+   */
+  void close() {
+    try {
+      channel.close();
+    } catch (IOException ex) {
+      // Ignore
+    }
+  }
+
+  /**
+   * Returns the Zoomify ImageProperties.xml description for the image.
+   * <p>
+   * Format:
+   * <pre>&lt;IMAGE_PROPERTIES WIDTH="3000" HEIGHT="4000" NUMTILES="257" NUMIMAGES="1" VERSION="1.8" TILESIZE="256" /&gt;</pre>
+   */
+  String getImageProperties() {
+    return "<IMAGE_PROPERTIES"
+        + " WIDTH=\"" + levels.get(0).width + "\""
+        + " HEIGHT=\"" + levels.get(0).height + "\""
+        + " NUMTILES=\"" + tileNo + "\""
+        + " NUMIMAGES=\"1\""
+        + " VERSION=\"1.8\""
+        + " TILESIZE=\"" + tileSize + "\""
+        + " />\n";
+  }
+
+  /**
+   * Returns the requested tile as jpeg data.
+   * @param quality the jpeg quality used if the tile needs to be jpeg compressed
+   * @param path a Zoomify-flavoured image path, such as "0-0-0.jpg"
+   */
+  byte[] getTile(int quality, String path) throws IOException {
+    // Remove directory and extension, e.g. "TileGroup0/0-0-0.jpg" -> "0-0-0"
+    String name = path.substring(path.lastIndexOf('/') + 1);
+    if (name.lastIndexOf('.') != -1) {
+      name = name.substring(0, name.lastIndexOf('.'));
+    }
+
+    // Get the tile coordinates. Zoomify requests are of the form "r-x-y.jpg"
+    // where r is the resolution number and x and y are the tile coordinates
+    String[] tokens = name.split("-");
+    if (tokens.length != 3) {
+      throw new IOException("Invalid tile name: " + path);
+    }
+    try {
+      return getTile(
+          Integer.parseInt(tokens[0]),
+          Integer.parseInt(tokens[1]),
+          Integer.parseInt(tokens[2]),
+          quality);
+    } catch (NumberFormatException ex) {
+      throw new IOException("Invalid tile name: " + path);
+    }
+  }
+
+  /**
+   * Returns the requested tile as jpeg data.
+   * @param r the Zoomify tile-level (resolution) to fetch the tile from
+   * @param x the horizontal tile coordinate
+   * @param y the vertical tile coordinate
+   * @param quality the jpeg quality used if the tile needs to be jpeg compressed
+   */
+  byte[] getTile(int r, int x, int y, int quality) throws IOException {
+    if (r < 0 || r > levels.size() - 1) {
+      throw new IOException("ZppImage :: Asked for non-existant resolution: " + r);
+    }
+
+    // In Zoomify, tile level 0 is the lowest resolution image. In TIFF the order is opposite.
+    Level level = levels.get(levels.size() - r - 1);
+    int htno = level.getHorizTileNo();
+    int vtno = level.getVertTileNo();
+    int tw = (x == htno - 1 && level.width % tileSize != 0)  ? level.width % tileSize  : tileSize;
+    int th = (y == vtno - 1 && level.height % tileSize != 0) ? level.height % tileSize : tileSize;
+    int tile = y * htno + x;
+    if (x < 0 || y < 0 || x >= htno || y >= vtno
+        || tile >= level.tileOffsets.length || tile >= level.tileByteCounts.length) {
+      throw new IOException("Asked for non-existant tile: " + tile);
+    }
+
+    // Sparse tiles have no data, and are read as zeros by libtiff
+    if (level.tileByteCounts[tile] == 0) {
+      return convertTileToJpeg(new BufferedImage(tw, th, BufferedImage.TYPE_INT_RGB), quality);
+    }
+    byte[] raw = read(level.tileOffsets[tile], (int)level.tileByteCounts[tile]).array();
+
+    BufferedImage image;
+    if (level.compression == COMPRESSION_JPEG) {
+      byte[] jpeg = getRawJpegTile(level, raw);
+
+      // Export the tile directly, if the exported tile size is identical to the full tile size
+      if (tw == tileSize && th == tileSize) {
+        return jpeg;
+      }
+      image = ImageIO.read(new ByteArrayInputStream(jpeg));
+      if (image == null) {
+        throw new IOException("Failed decoding jpeg tile " + tile);
+      }
+
+    } else {
+      image = decodeTile(level, raw);
+    }
+    return convertTileToJpeg(image.getSubimage(0, 0, tw, th), quality);
+  }
+
+  /**
+   * Combines the jpeg tables of the tiff directory with the given raw tile.
+   * The jpeg tables end with an EOI marker and the raw tile starts with an SOI marker,
+   * both of which are stripped.
+   */
+  byte[] getRawJpegTile(Level level, byte[] raw) throws IOException {
+    if (level.jpegTables == null || level.jpegTables.length <= 4) {
+      return raw;
+    }
+    if (raw.length < 2 || raw[0] != (byte)0xff || raw[1] != (byte)0xd8) {
+      throw new IOException("Invalid jpeg tile in " + imagePath);
+    }
+    int tablesLength = level.jpegTables.length - 2;
+    byte[] jpeg = new byte[tablesLength + raw.length - 2];
+    System.arraycopy(level.jpegTables, 0, jpeg, 0, tablesLength);
+    System.arraycopy(raw, 2, jpeg, tablesLength, raw.length - 2);
+    return jpeg;
+  }
+
+  /**
+   * Decodes an uncompressed or deflate compressed tile
+   */
+  BufferedImage decodeTile(Level level, byte[] raw) throws IOException {
+    if (level.bitsPerSample != 8 || (level.channels != 1 && level.channels != 3)) {
+      throw new IOException("Unsupported tiff sample format in " + imagePath);
+    }
+
+    // Decompress the tile
+    int rowStride = level.tileWidth * level.channels;
+    byte[] data;
+    if (level.compression == COMPRESSION_NONE) {
+      data = raw;
+      if (data.length < rowStride * level.tileHeight) {
+        throw new IOException("Truncated tile in " + imagePath);
+      }
+    } else if (level.compression == COMPRESSION_DEFLATE || level.compression == COMPRESSION_ADOBE_DEFLATE) {
+      data = new byte[rowStride * level.tileHeight];
+      Inflater inflater = new Inflater();
+      try {
+        inflater.setInput(raw);
+        inflater.inflate(data);
+      } catch (DataFormatException ex) {
+        throw new IOException("Failed inflating tile", ex);
+      } finally {
+        inflater.end();
+      }
+    } else {
+      throw new IOException("Unsupported tiff compression " + level.compression + " in " + imagePath);
+    }
+
+    // Undo horizontal differencing
+    if (level.predictor == 2) {
+      for (int y = 0; y < level.tileHeight; y++) {
+        for (int i = y * rowStride + level.channels; i < (y + 1) * rowStride; i++) {
+          data[i] += data[i - level.channels];
+        }
+      }
+    }
+
+    BufferedImage image = new BufferedImage(
+        level.tileWidth,
+        level.tileHeight,
+        (level.channels == 3) ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_BYTE_GRAY);
+    if (level.channels == 3) {
+      for (int y = 0; y < level.tileHeight; y++) {
+        for (int x = 0; x < level.tileWidth; x++) {
+          int i = y * rowStride + x * 3;
+          image.setRGB(x, y, (data[i] & 0xff) << 16 | (data[i + 1] & 0xff) << 8 | (data[i + 2] & 0xff));
+        }
+      }
+    } else {
+      image.getRaster().setDataElements(0, 0, level.tileWidth, level.tileHeight, data);
+    }
+    return image;
+  }
+
+  /**
+   * Compresses the given image as jpeg with the given quality (0-100)
+   */
+  static byte[] convertTileToJpeg(BufferedImage image, int quality) throws IOException {
+    ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+      ImageWriteParam param = writer.getDefaultWriteParam();
+      param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+      param.setCompressionQuality(quality / 100.0f);
+      writer.setOutput(ios);
+      writer.write(null, new IIOImage(image, null, null), param);
+    } finally {
+      writer.dispose();
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Represents a single tiff directory, i.e. a level of the pyramid
+   */
+  static class Level {
+    int width, height, tileWidth, tileHeight;
+    int compression, channels, bitsPerSample, predictor;
+    long[] tileOffsets, tileByteCounts;
+    byte[] jpegTables;
+    long nextOffset;
+
+    int getHorizTileNo() {
+      return (int)Math.ceil((double)width / tileWidth);
+    }
+
+    int getVertTileNo() {
+      return (int)Math.ceil((double)height / tileHeight);
+    }
+  }
+}
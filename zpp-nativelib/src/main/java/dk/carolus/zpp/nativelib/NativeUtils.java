@@ -1,11 +1,25 @@
 package dk.carolus.zpp.nativelib;
 
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.Set;
  
 /**
  * Loads the requested native library from the Jar file.
@@ -14,6 +28,13 @@ import java.nio.file.StandardCopyOption;
  * So, if you e.g. use "mylib" on a Mac, the actual library "libmylib.dylib" 
  * will be loaded.
  * <p>
+ * The library is extracted once into a cache directory named by the SHA-256 hash 
+ * of the library, and the extracted library is reused across JVM starts, provided 
+ * that its hash still matches. A file lock guards the extraction against concurrent JVMs.
+ * The cache directory defaults to <tt>zpp-native-&lt;user&gt;</tt> in the temp directory, 
+ * and may be changed with the <tt>zpp.native.dir</tt> system property. It must be owned 
+ * by, and only be writable by, the current user.
+ * <p>
  *
  * @author Peder
  */
@@ -22,6 +43,17 @@ public class NativeUtils {
     enum OSType { MAC_OS_X, WINDOWS, LINUX };
     private static OSType os;
     
+    static final String CACHE_DIR = System.getProperty(
+        "zpp.native.dir", 
+        Paths.get(System.getProperty("java.io.tmpdir"), 
+            "zpp-native-" + System.getProperty("user.name").replaceAll("[^\\w.-]", "_")).toString());
+    
+    // The maximal number of copies of a library, loaded by separate class loaders
+    static final int MAX_COPIES = 8;
+    
+    // The libraries loaded by this class loader
+    private static final Set<String> loadedLibraries = new HashSet<>();
+    
     static {
       String osName = System.getProperty("os.name").toLowerCase();
       if (osName.startsWith("mac os x")) {
@@ -63,30 +95,18 @@ public class NativeUtils {
       }
     }
     
-    /**
-     * Return the calling class
-     * @return the calling class
-     */
-    private static Class getCallingClass() {
-      Class[] classContext = new SecurityManager() {
-        @Override public Class[] getClassContext() {
-          return super.getClassContext();
-        }}.getClassContext();
-      return classContext[3];
-    }
-    
     /**
      * Loads the library from jar archive
      * <p>
      * The name is the "simple name" of the library. So, if you pass "mylib" on a Mac,
      * the actual library "libmylib.dylib" will be loaded.
      * <p>
-     * The library is loaded from the same package as the calling class.
+     * The library is loaded from the same package as the given class.
      *
+     * @param clazz the class whose package contains the library
      * @param libraryName the name of the library to load
      */
-    public static void loadLibraryFromJar(String libraryName) throws IOException {
-      Class clazz = getCallingClass();
+    public static void loadLibraryFromJar(Class<?> clazz, String libraryName) throws IOException {
       String packagePath = "/" + clazz.getPackage().getName().replaceAll("\\.", "/");
       loadLibraryFromJar(packagePath, libraryName);
     }
@@ -102,21 +122,181 @@ public class NativeUtils {
      * @param packagePath the package path of the library
      * @param libraryName the name of the library to load
      */
-    public static void loadLibraryFromJar(String packagePath, String libraryName) throws IOException {
+    public static synchronized void loadLibraryFromJar(String packagePath, String libraryName) throws IOException {
       
       // Determine the full OS-specific library name
-      String library = packagePath + "/" + getLibraryPrefix() + libraryName + getLibrarySuffix();
- 
-      // Prepare temporary file
-      Path temp = Files.createTempFile(getLibraryPrefix(), getLibrarySuffix());
+      String fileName = getLibraryPrefix() + libraryName + getLibrarySuffix();
+      String library = packagePath + "/" + fileName;
+      if (loadedLibraries.contains(library)) {
+        return;
+      }
       
-      // Copy the library from the jar to the temp file
+      // Read the library from the jar
+      byte[] data;
       try (InputStream is = NativeUtils.class.getResourceAsStream(library)) {
-        Files.copy(is, temp, StandardCopyOption.REPLACE_EXISTING);
+        if (is == null) {
+          throw new IOException("Library " + library + " not found in jar");
+        }
+        data = readAll(is);
+      }
+      
+      // A library can only be loaded by a single class loader. This happens e.g. when 
+      // a web application is redeployed, in which case the next numbered copy of the 
+      // library, e.g. "libmylib.1.dylib", is loaded instead
+      String hash = sha256(data);
+      Path dir = createCacheDir(Paths.get(CACHE_DIR).toAbsolutePath().resolve(hash));
+      for (int copy = 0; copy < MAX_COPIES; copy++) {
+        Path file = dir.resolve(getLibraryPrefix() + libraryName 
+            + ((copy == 0) ? "" : "." + copy) + getLibrarySuffix());
+        
+        // Extract the library into the cache, unless already extracted
+        if (!isExtracted(file, hash)) {
+          extract(dir, file, data, hash);
+        }
+        
+        // Finally, load the library
+        try {
+          System.load(file.toAbsolutePath().toString());
+          loadedLibraries.add(library);
+          return;
+          
+        } catch (UnsatisfiedLinkError ex) {
+          if (ex.getMessage() == null || !ex.getMessage().contains("another classloader")) {
+            throw ex;
+          }
+        }
+      }
+      throw new IOException("All " + MAX_COPIES + " copies of library " + library + " are loaded by other class loaders");
+    }
+    
+    /**
+     * Extracts the library data into the given file of the cache directory.
+     * <p>
+     * A lock file guards against concurrent extraction by other JVMs, and the
+     * library is written to a temporary file that is moved into place.
+     *
+     * @param dir the cache directory of the library
+     * @param file the library file to extract
+     * @param data the library data
+     * @param hash the hex-encoded SHA-256 hash of the library data
+     */
+    private static void extract(Path dir, Path file, byte[] data, String hash) throws IOException {
+      Path lockFile = dir.resolve("extract.lock");
+      try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+        FileLock lock = channel.lock();
+        try {
+          // Another JVM may have extracted the library while we waited for the lock
+          if (isExtracted(file, hash)) {
+            return;
+          }
+          Path temp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+          try {
+            Files.write(temp, data);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+          } finally {
+            Files.deleteIfExists(temp);
+          }
+        } finally {
+          lock.release();
+        }
+      }
+    }
+    
+    /**
+     * Returns if the given library file has been extracted, i.e. if it is 
+     * a regular file with the given SHA-256 hash.
+     *
+     * @param file the library file
+     * @param hash the hex-encoded SHA-256 hash of the library data
+     * @return if the library file has been extracted
+     */
+    private static boolean isExtracted(Path file, String hash) throws IOException {
+      return Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS) 
+          && hash.equals(sha256(Files.readAllBytes(file)));
+    }
+    
+    /**
+     * Creates the given cache directory of a library, and its parent cache directory, 
+     * with owner-only permissions.
+     * <p>
+     * Since the cache directory resides in the shared temp directory by default, 
+     * directories that are not owned by the current user, or are writable by other users, 
+     * are rejected. Otherwise, another user could plant a library to be loaded.
+     *
+     * @param dir the cache directory
+     * @return the cache directory
+     */
+    private static Path createCacheDir(Path dir) throws IOException {
+      boolean posix = Files.getFileStore(dir.getRoot()).supportsFileAttributeView(PosixFileAttributeView.class);
+      UserPrincipal user = getCurrentUser();
+      Files.createDirectories(dir.getParent().getParent());
+      for (Path d : new Path[] { dir.getParent(), dir }) {
+        if (!Files.exists(d, LinkOption.NOFOLLOW_LINKS)) {
+          try {
+            if (posix) {
+              Files.createDirectory(d, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            } else {
+              Files.createDirectory(d);
+            }
+          } catch (FileAlreadyExistsException ex) {
+            // Created concurrently. Checked below
+          }
+        }
+        if (!Files.isDirectory(d, LinkOption.NOFOLLOW_LINKS) 
+            || !user.equals(Files.getOwner(d, LinkOption.NOFOLLOW_LINKS))) {
+          throw new IOException("Library cache directory " + d + " is not a directory owned by " + user.getName());
+        }
+        if (posix) {
+          Set<PosixFilePermission> perms = Files.getPosixFilePermissions(d, LinkOption.NOFOLLOW_LINKS);
+          if (perms.contains(PosixFilePermission.GROUP_WRITE) || perms.contains(PosixFilePermission.OTHERS_WRITE)) {
+            throw new IOException("Library cache directory " + d + " is writable by other users");
+          }
+        }
+      }
+      return dir;
+    }
+    
+    /**
+     * Returns the current user, i.e. the owner of the files created by this JVM
+     * @return the current user
+     */
+    private static UserPrincipal getCurrentUser() throws IOException {
+      Path temp = Files.createTempFile("zpp-native", ".tmp");
+      try {
+        return Files.getOwner(temp);
+      } finally {
+        Files.delete(temp);
+      }
+    }
+    
+    /**
+     * Reads all data from the given stream
+     * @param is the stream to read
+     * @return the data
+     */
+    private static byte[] readAll(InputStream is) throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buf = new byte[8192];
+      for (int n = is.read(buf); n != -1; n = is.read(buf)) {
+        out.write(buf, 0, n);
+      }
+      return out.toByteArray();
+    }
+    
+    /**
+     * Returns the hex-encoded SHA-256 hash of the given data
+     * @param data the data to hash
+     * @return the hex-encoded hash
+     */
+    private static String sha256(byte[] data) throws IOException {
+      try {
+        StringBuilder hash = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(data)) {
+          hash.append(String.format("%02x", b & 0xff));
+        }
+        return hash.toString();
+      } catch (Exception ex) {
+        throw new IOException("Error hashing library", ex);
       }
-      temp.toFile().deleteOnExit();
- 
-      // Finally, load the library
-      System.load(temp.toAbsolutePath().toString());
     }
 }
\ No newline at end of file
@@ -0,0 +1,564 @@
+package dk.carolus.zpp.nativelib;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Exports a ptiff image as a Zoomify file bundle, i.e. an <i>ImageProperties.xml</i>
+ * file along with the image tiles in <i>TileGroupN</i> directories.
+ * <p>
+ * The tiles of all pyramid levels are fanned out over a pool of workers,
+ * each of which use their own {@code ZppImage}, since the underlying libtiff
+ * handle cannot be shared between threads. Tiles that are already jpeg compressed
+ * in the ptiff are exported directly by {@code ZppImage}, without transcoding.
+ * <p>
+ * Tiles are written to a temporary file and moved into place, and the
+ * <i>ImageProperties.xml</i> file is written last. Hence, an interrupted export
+ * may be resumed by running the exporter again; tiles already exported are skipped.
+ * <p>
+ * The size and modification time of the ptiff, along with the export settings,
+ * are recorded in a <i>.zpp-export</i> marker file in the output directory.
+ * If the ptiff or the settings have changed, the previously exported tiles are
+ * deleted rather than resumed, and an output directory with tiles but without
+ * a marker file is rejected.
+ * <p>
+ * Optionally, the exported file bundle can be verified against the tiles served
+ * by the Zpp image server for the ptiff. Tiles that differ from the served tiles,
+ * e.g. because they have been transcoded using another jpeg quality or backend,
+ * are compared by their decoded pixels.
+ * Note that the verification does not check the <i>TileGroupN</i> numbering of the tiles,
+ * since the image server ignores the tile group of ptiff tiles, and the tile paths are
+ * computed by {@link #computeTiles(int, int, int)} for the export and verification alike.
+ * <p>
+ * Usage:<br>
+ * <pre>java -classpath target/zpp-nativelib-0.1.0-SNAPSHOT.jar dk.carolus.zpp.nativelib.ZppExporter \
+ *     [-threads 8] [-quality 85] [-backend native|java] [-verify http://localhost:8080/zpprepo/image.tif] image.tif outputDir</pre>
+ *
+ * @author peder
+ */
+public class ZppExporter {
+
+  /**
+   * In Zoomify, there are at most 256 images in each TileGroup folder
+   */
+  static final int TILES_PER_GROUP = 256;
+
+  /**
+   * The jpeg quality used by the Zpp image server
+   */
+  static final int DEFAULT_QUALITY = 85;
+
+  /**
+   * The name of the marker file, which records the source and settings of an export
+   */
+  static final String MARKER_FILE = ".zpp-export";
+
+  /**
+   * The maximal mean absolute difference of the color components within each 
+   * 8x8 pixel block, for tiles that are compared by pixels. The tiles of the
+   * sample ptiff transcoded with a jpeg quality down to 10 stay within this tolerance.
+   */
+  static final double PIXEL_TOLERANCE = 32.0;
+
+  static final Pattern IMAGE_PROPERTIES_PATTERN = Pattern.compile(
+      "(?i)<IMAGE_PROPERTIES.*WIDTH=\"(\\d+)\".*HEIGHT=\"(\\d+)\".*NUMTILES=\"(\\d+)\".*TILESIZE=\"(\\d+)\"");
+
+  String imagePath;
+  Path outputDir;
+  int threads = Runtime.getRuntime().availableProcessors();
+  int quality = DEFAULT_QUALITY;
+  ZppImage.Backend backend;
+  String imageProperties;
+  List<Tile> tiles;
+
+  /**
+   * Constructor
+   * @param imagePath the path to the ptiff image
+   * @param outputDir the directory of the Zoomify file bundle to export to
+   */
+  public ZppExporter(String imagePath, Path outputDir) {
+    this.imagePath = imagePath;
+    this.outputDir = outputDir;
+  }
+
+  /**
+   * Sets the number of worker threads to use
+   * @param threads the number of worker threads
+   */
+  public void setThreads(int threads) {
+    this.threads = Math.max(1, threads);
+  }
+
+  /**
+   * Sets the jpeg quality used for tiles that need to be transcoded
+   * @param quality the jpeg quality (0-100)
+   */
+  public void setQuality(int quality) {
+    this.quality = quality;
+  }
+
+  /**
+   * Sets the backend used for reading the ptiff.
+   * If not set, the default backend is used.
+   * @param backend the backend to use
+   */
+  public void setBackend(ZppImage.Backend backend) {
+    this.backend = backend;
+  }
+
+  /**
+   * Reads the image properties from the ptiff and computes the
+   * tiles of all the zoom levels
+   */
+  void init() throws Exception {
+    if (tiles != null) {
+      return;
+    }
+    if (backend == null) {
+      backend = ZppImage.getDefaultBackend();
+    }
+
+    ZppImage image = new ZppImage(imagePath, backend);
+    try {
+      imageProperties = image.getImageProperties();
+    } finally {
+      image.destroy();
+    }
+
+    Matcher m = IMAGE_PROPERTIES_PATTERN.matcher(imageProperties);
+    if (!m.find()) {
+      throw new Exception("Invalid image properties " + imageProperties);
+    }
+    int width     = Integer.parseInt(m.group(1));
+    int height    = Integer.parseInt(m.group(2));
+    int tileNo    = Integer.parseInt(m.group(3));
+    int tileSize  = Integer.parseInt(m.group(4));
+
+    tiles = computeTiles(width, height, tileSize);
+    if (tiles.size() != tileNo) {
+      System.err.println("Warning: Computed " + tiles.size() + " tiles, but the image has " + tileNo);
+    }
+  }
+
+  /**
+   * Computes the tiles of all zoom levels, in the same manner as the ZppViewer.
+   *
+   * @param width the width of the full image
+   * @param height the height of the full image
+   * @param tileSize the tile size
+   * @return the tiles, ordered by zoom level
+   */
+  static List<Tile> computeTiles(int width, int height, int tileSize) {
+    // Compute the zoom levels, smallest last
+    List<int[]> levels = new ArrayList<>();
+    int w = width, h = height;
+    while (true) {
+      levels.add(new int[] {
+          (int)Math.ceil((double)w / tileSize),
+          (int)Math.ceil((double)h / tileSize) });
+      if (Math.max(w, h) <= tileSize) {
+        break;
+      }
+      w /= 2;
+      h /= 2;
+    }
+
+    // Compute the tiles and their tile group indexes
+    List<Tile> tiles = new ArrayList<>();
+    int index = 0;
+    for (int level = 0; level < levels.size(); level++) {
+      int[] tileNo = levels.get(levels.size() - level - 1);
+      for (int y = 0; y < tileNo[1]; y++) {
+        for (int x = 0; x < tileNo[0]; x++) {
+          tiles.add(new Tile(level, x, y, index++ / TILES_PER_GROUP));
+        }
+      }
+    }
+    return tiles;
+  }
+
+  /**
+   * Exports the ptiff as a Zoomify file bundle.
+   * Tiles already present in the output directory are skipped, provided that
+   * they were exported from the same ptiff using the same settings.
+   *
+   * @return the number of exported tiles
+   */
+  public int export() throws Exception {
+    final long t0 = System.currentTimeMillis();
+    init();
+    prepareOutputDir();
+
+    final AtomicInteger next = new AtomicInteger();
+    final AtomicInteger exported = new AtomicInteger();
+    List<Callable<Void>> workers = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      workers.add(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          ZppImage image = new ZppImage(imagePath, backend);
+          try {
+            for (int n = next.getAndIncrement(); n < tiles.size(); n = next.getAndIncrement()) {
+              Tile tile = tiles.get(n);
+              Path file = outputDir.resolve(tile.getPath());
+              if (Files.exists(file)) {
+                continue;
+              }
+              write(file, image.getTile(quality, tile.getName()));
+              int cnt = exported.incrementAndGet();
+              if (cnt % 1000 == 0) {
+                System.out.println("Progress: " + cnt + " tiles " + (System.currentTimeMillis() - t0) + " ms");
+              }
+            }
+          } finally {
+            image.destroy();
+          }
+          return null;
+        }
+      });
+    }
+    runAll(workers);
+
+    // Writing the image properties last marks the export as complete
+    write(outputDir.resolve("ImageProperties.xml"), imageProperties.getBytes(Charset.forName("UTF-8")));
+
+    System.out.println("Exported " + exported.get() + " of " + tiles.size() + " tiles to " + outputDir
+        + " in " + (System.currentTimeMillis() - t0) + " ms");
+    return exported.get();
+  }
+
+  /**
+   * Prepares the output directory for the export.
+   * <p>
+   * If the marker file of a previous export does not match the current ptiff
+   * and settings, the previously exported tiles are deleted. Left-over temporary
+   * files of an interrupted export are deleted, and the marker file is written
+   * before any tiles are exported.
+   */
+  void prepareOutputDir() throws IOException {
+    Files.createDirectories(outputDir);
+    Path markerFile = outputDir.resolve(MARKER_FILE);
+
+    Properties marker = new Properties();
+    marker.setProperty("source.size", String.valueOf(Files.size(Paths.get(imagePath))));
+    marker.setProperty("source.modified", String.valueOf(Files.getLastModifiedTime(Paths.get(imagePath)).toMillis()));
+    marker.setProperty("quality", String.valueOf(quality));
+    marker.setProperty("backend", backend.toString());
+
+    List<Path> bundleFiles = listBundleFiles();
+    if (Files.exists(markerFile)) {
+      Properties previous = new Properties();
+      try (InputStream in = Files.newInputStream(markerFile)) {
+        previous.load(in);
+      }
+      if (!previous.equals(marker)) {
+        System.out.println("The ptiff or the export settings have changed. Deleting the previous export");
+        // Delete the image properties first, since it marks the export as complete
+        Files.deleteIfExists(outputDir.resolve("ImageProperties.xml"));
+        for (Path dir : bundleFiles) {
+          delete(dir, "*");
+        }
+        Files.delete(markerFile);
+      }
+    } else if (!bundleFiles.isEmpty()) {
+      throw new IOException("The output directory " + outputDir + " contains tiles that were not exported by this exporter");
+    }
+
+    // Delete temporary files left by an interrupted export
+    delete(outputDir, "*.tmp");
+    for (Path dir : listBundleFiles()) {
+      delete(dir, "*.tmp");
+    }
+
+    if (!Files.exists(markerFile)) {
+      try (OutputStream out = Files.newOutputStream(markerFile)) {
+        marker.store(out, "Zpp export of " + imagePath);
+      }
+    }
+  }
+
+  /**
+   * Returns the image properties file and the tile group directories of the output directory
+   * @return the Zoomify files of the output directory
+   */
+  List<Path> listBundleFiles() throws IOException {
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> dirs = Files.newDirectoryStream(outputDir, "{ImageProperties.xml,TileGroup*}")) {
+      for (Path dir : dirs) {
+        if (Files.isDirectory(dir)) {
+          files.add(dir);
+        } else {
+          files.add(0, dir);
+        }
+      }
+    }
+    return files;
+  }
+
+  /**
+   * Deletes the files of the given directory that match the glob pattern.
+   * If the pattern is "*", the directory itself is deleted as well.
+   *
+   * @param dir the directory, or a single file to delete
+   * @param glob the glob pattern of the files to delete
+   */
+  static void delete(Path dir, String glob) throws IOException {
+    if (!Files.isDirectory(dir)) {
+      Files.deleteIfExists(dir);
+      return;
+    }
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, glob)) {
+      for (Path file : files) {
+        if (!Files.isDirectory(file)) {
+          Files.delete(file);
+        }
+      }
+    }
+    if ("*".equals(glob)) {
+      Files.delete(dir);
+    }
+  }
+
+  /**
+   * Verifies the exported Zoomify file bundle against the parts served
+   * by the Zpp image server for the ptiff.
+   * <p>
+   * The {@code REVISION} attribute added to the image properties by
+   * the image server is ignored.
+   *
+   * @param baseUrl the Zpp image server url of the ptiff, e.g. "http://localhost:8080/zpprepo/image.tif"
+   * @return the number of parts that differ
+   */
+  public int verify(final String baseUrl) throws Exception {
+    long t0 = System.currentTimeMillis();
+    init();
+
+    String props = new String(fetch(baseUrl + "/ImageProperties.xml"), "UTF-8");
+    String exportedProps = new String(Files.readAllBytes(outputDir.resolve("ImageProperties.xml")), "UTF-8");
+    final AtomicInteger failed = new AtomicInteger();
+    if (!props.replaceFirst(" REVISION=\"[^\"]*\"", "").trim().equals(exportedProps.trim())) {
+      System.err.println("Mismatch: ImageProperties.xml");
+      failed.incrementAndGet();
+    }
+
+    final AtomicInteger next = new AtomicInteger();
+    List<Callable<Void>> workers = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      workers.add(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          for (int n = next.getAndIncrement(); n < tiles.size(); n = next.getAndIncrement()) {
+            Tile tile = tiles.get(n);
+            Path file = outputDir.resolve(tile.getPath());
+            byte[] served = fetch(baseUrl + "/" + tile.getPath());
+            byte[] exported = Files.exists(file) ? Files.readAllBytes(file) : null;
+            if (exported == null || (!Arrays.equals(served, exported) && !equalPixels(served, exported))) {
+              System.err.println("Mismatch: " + tile.getPath());
+              failed.incrementAndGet();
+            }
+          }
+          return null;
+        }
+      });
+    }
+    runAll(workers);
+
+    System.out.println("Verified " + (tiles.size() + 1) + " parts against " + baseUrl + " with "
+        + failed.get() + " mismatches in " + (System.currentTimeMillis() - t0) + " ms");
+    return failed.get();
+  }
+
+  /**
+   * Compares the decoded pixels of the given jpeg tiles.
+   * <p>
+   * Tiles that have been transcoded, using another jpeg quality or another jpeg
+   * encoder than the image server, never match byte for byte. Instead, they are
+   * considered equal if they have the same dimensions, and the mean absolute difference
+   * of the color components within each 8x8 pixel block is within {@code PIXEL_TOLERANCE}.
+   * Comparing the blocks individually catches local damage to a tile, which would
+   * be evened out by comparing the tile as a whole.
+   *
+   * @param data1 the first jpeg tile
+   * @param data2 the second jpeg tile
+   * @return if the tiles are equal
+   */
+  static boolean equalPixels(byte[] data1, byte[] data2) throws IOException {
+    BufferedImage img1 = ImageIO.read(new ByteArrayInputStream(data1));
+    BufferedImage img2 = ImageIO.read(new ByteArrayInputStream(data2));
+    if (img1 == null || img2 == null
+        || img1.getWidth() != img2.getWidth() || img1.getHeight() != img2.getHeight()) {
+      return false;
+    }
+    int width = img1.getWidth(), height = img1.getHeight();
+    for (int by = 0; by < height; by += 8) {
+      for (int bx = 0; bx < width; bx += 8) {
+        int w = Math.min(8, width - bx), h = Math.min(8, height - by);
+        int[] rgb1 = img1.getRGB(bx, by, w, h, null, 0, w);
+        int[] rgb2 = img2.getRGB(bx, by, w, h, null, 0, w);
+        long diff = 0;
+        for (int i = 0; i < rgb1.length; i++) {
+          for (int shift = 0; shift < 24; shift += 8) {
+            diff += Math.abs(((rgb1[i] >> shift) & 0xff) - ((rgb2[i] >> shift) & 0xff));
+          }
+        }
+        if (diff > PIXEL_TOLERANCE * 3 * rgb1.length) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Runs the given workers in a thread pool and waits for them to complete
+   * @param workers the workers to run
+   */
+  void runAll(List<Callable<Void>> workers) throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(workers.size());
+    try {
+      for (Future<Void> f : pool.invokeAll(workers)) {
+        f.get();
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Writes the data to a temporary file, which is then moved to the given file.
+   * This way, an interrupted export never leaves a partially written file.
+   *
+   * @param file the file to write
+   * @param data the data to write
+   */
+  static void write(Path file, byte[] data) throws IOException {
+    Files.createDirectories(file.getParent());
+    Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+    try {
+      Files.write(temp, data);
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * Fetches the data of the given url
+   * @param url the url to fetch
+   * @return the fetched data
+   */
+  static byte[] fetch(String url) throws IOException {
+    HttpURLConnection conn = (HttpURLConnection)new URL(url).openConnection();
+    try {
+      if (conn.getResponseCode() != HttpURLConnection.HTTP_OK) {
+        throw new IOException("Error fetching " + url + ": " + conn.getResponseCode());
+      }
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      try (InputStream is = conn.getInputStream()) {
+        byte[] buf = new byte[8192];
+        for (int n = is.read(buf); n != -1; n = is.read(buf)) {
+          out.write(buf, 0, n);
+        }
+      }
+      return out.toByteArray();
+    } finally {
+      conn.disconnect();
+    }
+  }
+
+  /**
+   * Represents a single tile of the Zoomify image
+   */
+  static class Tile {
+    int level, x, y, group;
+
+    Tile(int level, int x, int y, int group) {
+      this.level = level;
+      this.x = x;
+      this.y = y;
+      this.group = group;
+    }
+
+    /**
+     * Returns the Zoomify tile name, e.g. "0-0-0.jpg"
+     */
+    String getName() {
+      return level + "-" + x + "-" + y + ".jpg";
+    }
+
+    /**
+     * Returns the tile path within the Zoomify file bundle, e.g. "TileGroup0/0-0-0.jpg"
+     */
+    String getPath() {
+      return "TileGroup" + group + "/" + getName();
+    }
+  }
+
+  /**
+   * Exports a ptiff image as a Zoomify file bundle.
+   * <p>
+   * Usage:<br>
+   * <pre>java -classpath target/zpp-nativelib-0.1.0-SNAPSHOT.jar dk.carolus.zpp.nativelib.ZppExporter \
+   *     [-threads 8] [-quality 85] [-backend native|java] [-verify http://localhost:8080/zpprepo/image.tif] image.tif outputDir</pre>
+   */
+  public static void main(String[] args) throws Exception {
+    int threads = Runtime.getRuntime().availableProcessors();
+    int quality = DEFAULT_QUALITY;
+    ZppImage.Backend backend = null;
+    String verifyUrl = null;
+    List<String> files = new ArrayList<>();
+    for (int i = 0; i < args.length; i++) {
+      if ("-threads".equals(args[i]) && i < args.length - 1) {
+        threads = Integer.parseInt(args[++i]);
+      } else if ("-quality".equals(args[i]) && i < args.length - 1) {
+        quality = Integer.parseInt(args[++i]);
+      } else if ("-backend".equals(args[i]) && i < args.length - 1) {
+        backend = ZppImage.Backend.valueOf(args[++i].toUpperCase());
+      } else if ("-verify".equals(args[i]) && i < args.length - 1) {
+        verifyUrl = args[++i];
+      } else {
+        files.add(args[i]);
+      }
+    }
+    if (files.size() != 2) {
+      System.err.println("Usage: ZppExporter [-threads 8] [-quality 85] [-backend native|java] [-verify url] image.tif outputDir");
+      System.exit(1);
+    }
+
+    ZppExporter exporter = new ZppExporter(files.get(0), Paths.get(files.get(1)));
+    exporter.setThreads(threads);
+    exporter.setQuality(quality);
+    if (backend != null) {
+      exporter.setBackend(backend);
+    }
+    exporter.export();
+    if (verifyUrl != null && exporter.verify(verifyUrl) > 0) {
+      System.exit(2);
+    }
+  }
+}
@@ -5,38 +5,136 @@ import java.nio.file.Paths;
 import java.nio.file.Files;
 import java.nio.file.StandardOpenOption;
 import java.nio.charset.Charset;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
 
 /**
- * Serves as a JNI wrapper for the ZppImage C++ class
- * which uses libtiff and libjpeg to fetch ImageProperties 
- * and tiles from a ptiff file according to the Zoomify protocol.
+ * Fetches ImageProperties and tiles from a ptiff file according 
+ * to the Zoomify protocol, using one of two backends:
+ * <ul>
+ *   <li>NATIVE: Serves as a JNI wrapper for the ZppImage C++ class
+ *       which uses libtiff and libjpeg.</li>
+ *   <li>JAVA: Uses the pure-Java {@code JavaZppImage}, which does 
+ *       not depend on the native library.</li>
+ * </ul>
+ * <p>
+ * The default backend is given by the <tt>zpp.backend</tt> system property,
+ * i.e. "native" or "java". If undefined, the native backend is used if the 
+ * native library can be loaded, and otherwise the pure-Java backend.
+ * <p>
+ * Call {@code initialize()} at startup to load the native library and 
+ * warm up the backend eagerly, rather than upon the first image.
  *
  * @author peder
  */
 public class ZppImage {
 
+  /**
+   * The backends available for fetching the Zoomify image parts
+   */
+  public enum Backend { 
+    NATIVE, 
+    JAVA 
+  }
+
+  static final String BACKEND_PROPERTY = "zpp.backend";
+  static final Logger log = Logger.getLogger(ZppImage.class.getName());
+  
+  // Volatile, so that they can be checked without locking once initialized
+  private static volatile Backend defaultBackend;
+  private static volatile boolean nativeInitialized, javaInitialized;
+  
   /**
    * Native handle for the ZppImage C++ object that this class wraps
    */
 	long jniHandle = -1;
 	
   /**
-   * Load the native interface to the ZppImage C++ class.
+   * The pure-Java image, when using the Java backend
    */
-	static {
-		try {
-      NativeUtils.loadLibraryFromJar("zpp-native");		
-		} catch (Exception ex) {
-		  ex.printStackTrace();
-		}
-	}
+	JavaZppImage javaImage;
+	
+  /**
+   * Constructor using the default backend
+   * @param path the path to the ptiff image
+   */
+  public ZppImage(String path) throws Exception { 
+    this(path, getDefaultBackend());
+  }
   
   /**
    * Constructor
    * @param path the path to the ptiff image
+   * @param backend the backend to use
+   */
+  public ZppImage(String path, Backend backend) throws Exception { 
+    initialize(backend);
+    if (backend == Backend.NATIVE) {
+      jniHandle = zppNewImage(path);
+      if (jniHandle == -1) {
+        throw new Exception("Could not open image " + path);
+      }
+    } else {
+      javaImage = new JavaZppImage(path);
+    }
+  }
+  
+  /**
+   * Returns the default backend.
+   * <p>
+   * The backend is given by the <tt>zpp.backend</tt> system property. If undefined, 
+   * the native backend is used if the native library can be loaded.
+   * 
+   * @return the default backend
    */
-  public ZppImage(String path) { 
-    jniHandle = zppNewImage(path);
+  public static Backend getDefaultBackend() {
+    if (defaultBackend != null) {
+      return defaultBackend;
+    }
+    synchronized (ZppImage.class) {
+      if (defaultBackend == null) {
+        String backend = System.getProperty(BACKEND_PROPERTY);
+      if (backend != null) {
+          defaultBackend = Backend.valueOf(backend.trim().toUpperCase());
+        } else {
+          try {
+            initialize(Backend.NATIVE);
+            defaultBackend = Backend.NATIVE;
+          } catch (Throwable ex) {
+            log.log(Level.WARNING, "Native library not available, using the pure-Java backend: " + ex);
+            defaultBackend = Backend.JAVA;
+          }
+        }
+      }
+      return defaultBackend;
+    }
+  }
+  
+  /**
+   * Initializes the given backend eagerly.
+   * <p>
+   * For the native backend, the native interface to the ZppImage C++ class,
+   * along with libtiff and libjpeg, is loaded. For the pure-Java backend,
+   * the ImageIO jpeg plugins are loaded.
+   * 
+   * @param backend the backend to initialize
+   */
+  public static void initialize(Backend backend) throws Exception {
+    if ((backend == Backend.NATIVE) ? nativeInitialized : javaInitialized) {
+      return;
+    }
+    synchronized (ZppImage.class) {
+      if (backend == Backend.NATIVE && !nativeInitialized) {
+        NativeUtils.loadLibraryFromJar(ZppImage.class, "zpp-native");
+        nativeInitialized = true;
+      } else if (backend == Backend.JAVA && !javaInitialized) {
+        ImageIO.getImageReadersByFormatName("jpeg").next();
+        ImageIO.getImageWritersByFormatName("jpeg").next();
+        javaInitialized = true;
+      }
+    }
   }
   
   /**
@@ -47,12 +145,19 @@ public class ZppImage {
       zppDestroyImage(jniHandle);
     }
     jniHandle = -1;
+    if (javaImage != null) {
+      javaImage.close();
+    }
+    javaImage = null;
   }
   
   /**
    * Returns the image properties 
    */
   public String getImageProperties() throws Exception {
+    if (javaImage != null) {
+      return javaImage.getImageProperties();
+    }
     String desc = zppFetchImageProperties(jniHandle);
     if (desc == null) {
       throw new Exception("Cound not fetch ImageProperties.xml");
@@ -76,6 +181,9 @@ public class ZppImage {
    * Returns the tile given by the given path
    */
   public byte[] getTile(int quality, String path) throws Exception {
+    if (javaImage != null) {
+      return javaImage.getTile(quality, path);
+    }
     byte[] data = zppFetchTile(jniHandle, quality, path);
     if (data == null) {
       throw new Exception("Cound not fetch tile " + path);
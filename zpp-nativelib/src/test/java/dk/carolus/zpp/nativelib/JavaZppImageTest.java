@@ -0,0 +1,181 @@
+package dk.carolus.zpp.nativelib;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the pure-Java ptiff backend against the sample images of the test repository.
+ * <p>
+ * The <i>zpp_image4</i> Zoomify file bundle has been generated by libvips from
+ * the same image as the <i>zpp_image1.tif</i> ptiff.
+ *
+ * @author peder
+ */
+public class JavaZppImageTest {
+
+  static final Path TEST_REPO = Paths.get("../testrepo");
+  static final Path PTIFF     = TEST_REPO.resolve("zpp_image1.tif");
+  static final Path BUNDLE    = TEST_REPO.resolve("zpp_image4");
+
+  JavaZppImage image;
+  Path tempFile;
+
+  @Before
+  public void setUp() throws IOException {
+    image = new JavaZppImage(PTIFF.toString());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    image.close();
+    if (tempFile != null) {
+      Files.deleteIfExists(tempFile);
+    }
+  }
+
+  @Test
+  public void testImageProperties() throws IOException {
+    String expected = new String(Files.readAllBytes(BUNDLE.resolve("ImageProperties.xml")), "UTF-8");
+    assertEquals(expected.trim(), image.getImageProperties().trim());
+  }
+
+  @Test
+  public void testTileDimensions() throws IOException {
+    for (ZppExporter.Tile tile : ZppExporter.computeTiles(2560, 1920, 256)) {
+      BufferedImage expected = ImageIO.read(BUNDLE.resolve(tile.getPath()).toFile());
+      BufferedImage actual = decode(image.getTile(85, tile.getPath()));
+      assertEquals(tile.getName(), expected.getWidth(), actual.getWidth());
+      assertEquals(tile.getName(), expected.getHeight(), actual.getHeight());
+    }
+  }
+
+  @Test
+  public void testInteriorTileIsExportedDirectly() throws IOException {
+    byte[] tile = image.getTile(85, "4-0-0.jpg");
+    assertArrayEquals(image.getTile(10, "4-0-0.jpg"), tile);
+    assertEquals(256, decode(tile).getWidth());
+  }
+
+  @Test
+  public void testEdgeTiles() throws IOException {
+    // Level 4 is 2560x1920 pixels, i.e. 10x8 tiles with a bottom row of 128 pixels
+    BufferedImage corner = decode(image.getTile(85, "4-9-7.jpg"));
+    assertEquals(256, corner.getWidth());
+    assertEquals(128, corner.getHeight());
+
+    // Level 0 fits within a single tile
+    BufferedImage thumbnail = decode(image.getTile(85, "0-0-0.jpg"));
+    assertEquals(160, thumbnail.getWidth());
+    assertEquals(120, thumbnail.getHeight());
+  }
+
+  @Test
+  public void testInvalidTiles() {
+    for (String name : new String[] { "5-0-0.jpg", "4-10-0.jpg", "4-0-8.jpg", "4-0.jpg", "a-b-c.jpg" }) {
+      try {
+        image.getTile(85, name);
+        fail("Expected an exception for tile " + name);
+      } catch (IOException ex) {
+        // Expected
+      }
+    }
+  }
+
+  @Test
+  public void testSparseTile() throws IOException {
+    tempFile = writeSingleTileTiff(new byte[0]);
+    JavaZppImage sparse = new JavaZppImage(tempFile.toString());
+    try {
+      BufferedImage tile = decode(sparse.getTile(85, "0-0-0.jpg"));
+      assertEquals(16, tile.getWidth());
+      assertEquals(16, tile.getHeight());
+      assertEquals(0, tile.getRGB(8, 8) & 0xffffff);
+    } finally {
+      sparse.close();
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testTruncatedJpegTile() throws IOException {
+    tempFile = writeSingleTileTiff(new byte[] { (byte)0xff });
+    JavaZppImage truncated = new JavaZppImage(tempFile.toString());
+    try {
+      truncated.getTile(85, "0-0-0.jpg");
+    } finally {
+      truncated.close();
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testNotATiff() throws IOException {
+    new JavaZppImage(TEST_REPO.resolve("image.jpg").toString());
+  }
+
+  /**
+   * Decodes the given jpeg tile
+   */
+  static BufferedImage decode(byte[] data) throws IOException {
+    BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+    assertNotNull(image);
+    return image;
+  }
+
+  /**
+   * Writes a jpeg compressed 16x16 tiff with a single tile of the given data
+   */
+  static Path writeSingleTileTiff(byte[] tile) throws IOException {
+    byte[] jpegTables = { (byte)0xff, (byte)0xd8, 0, 0, 0, 0, (byte)0xff, (byte)0xd9 };
+    short[][] entries = {
+        // tag, type, value
+        { 256, 3, 16 },   // ImageWidth
+        { 257, 3, 16 },   // ImageLength
+        { 259, 3, 7 },    // Compression
+        { 277, 3, 3 },    // SamplesPerPixel
+        { 322, 3, 16 },   // TileWidth
+        { 323, 3, 16 },   // TileLength
+        { 324, 4, 0 },    // TileOffsets
+        { 325, 4, 0 },    // TileByteCounts
+        { 347, 7, 0 }     // JPEGTables
+    };
+    int ifdLength = 2 + entries.length * 12 + 4;
+    int tablesOffset = 8 + ifdLength;
+    int tileOffset = tablesOffset + jpegTables.length;
+
+    ByteBuffer buf = ByteBuffer.allocate(tileOffset + tile.length).order(ByteOrder.LITTLE_ENDIAN);
+    buf.put((byte)'I').put((byte)'I').putShort((short)42).putInt(8);
+    buf.putShort((short)entries.length);
+    for (short[] entry : entries) {
+      buf.putShort(entry[0]).putShort(entry[1]);
+      switch (entry[0]) {
+        case 324: buf.putInt(1).putInt(tileOffset); break;
+        case 325: buf.putInt(1).putInt(tile.length); break;
+        case 347: buf.putInt(jpegTables.length).putInt(tablesOffset); break;
+        default:  buf.putInt(1).putShort(entry[2]).putShort((short)0); break;
+      }
+    }
+    buf.putInt(0);
+    buf.put(jpegTables).put(tile);
+
+    File file = File.createTempFile("zpp-test", ".tif");
+    Files.write(file.toPath(), buf.array());
+    return file.toPath();
+  }
+}
@@ -0,0 +1,114 @@
+package dk.carolus.zpp.nativelib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.junit.Test;
+
+import dk.carolus.zpp.nativelib.ZppExporter.Tile;
+
+/**
+ * Tests the tile group numbering and the tile verification of the exporter.
+ *
+ * @author peder
+ */
+public class ZppExporterTest {
+
+  static final Path TILE = Paths.get("../testrepo/zpp_image4/TileGroup0/4-3-3.jpg");
+
+  @Test
+  public void testSingleTileGroup() {
+    List<Tile> tiles = ZppExporter.computeTiles(2560, 1920, 256);
+    assertEquals(109, tiles.size());
+    assertEquals("TileGroup0/0-0-0.jpg", tiles.get(0).getPath());
+    assertEquals("TileGroup0/4-9-7.jpg", tiles.get(108).getPath());
+  }
+
+  @Test
+  public void testMultipleTileGroups() {
+    // Zoom levels of 1, 2x2, 4x3, 8x6, 16x12 and 32x24 tiles
+    List<Tile> tiles = ZppExporter.computeTiles(8000, 6000, 256);
+    assertEquals(1 + 4 + 12 + 48 + 192 + 768, tiles.size());
+    assertEquals("TileGroup0/0-0-0.jpg", tiles.get(0).getPath());
+    assertEquals("TileGroup0/4-14-11.jpg", tiles.get(255).getPath());
+
+    // The tile group is given by the index of the tile across all zoom levels,
+    // so the last tile of zoom level 4 is the first tile of TileGroup1
+    assertEquals("TileGroup1/4-15-11.jpg", tiles.get(256).getPath());
+    assertEquals("TileGroup1/5-0-0.jpg", tiles.get(257).getPath());
+    assertEquals("TileGroup1/5-30-7.jpg", tiles.get(511).getPath());
+    assertEquals("TileGroup2/5-31-7.jpg", tiles.get(512).getPath());
+
+    // The last tile group holds the remaining tile
+    assertEquals("TileGroup3/5-30-23.jpg", tiles.get(1023).getPath());
+    assertEquals("TileGroup4/5-31-23.jpg", tiles.get(1024).getPath());
+  }
+
+  @Test
+  public void testOddImageSize() {
+    // The zoom levels are halved, rounding down: 1000x700, 500x350 and 250x175
+    List<Tile> tiles = ZppExporter.computeTiles(1000, 700, 256);
+    assertEquals(1 + 2 * 2 + 4 * 3, tiles.size());
+    assertEquals("TileGroup0/1-1-1.jpg", tiles.get(4).getPath());
+    assertEquals("TileGroup0/2-3-2.jpg", tiles.get(16).getPath());
+  }
+
+  @Test
+  public void testReencodedTileIsEqual() throws IOException {
+    BufferedImage tile = ImageIO.read(TILE.toFile());
+    byte[] data = Files.readAllBytes(TILE);
+    assertTrue(ZppExporter.equalPixels(data, encode(tile, 0.3f)));
+    assertTrue(ZppExporter.equalPixels(data, encode(tile, 0.95f)));
+  }
+
+  @Test
+  public void testLocallyCorruptedTileIsNotEqual() throws IOException {
+    BufferedImage tile = ImageIO.read(TILE.toFile());
+    Graphics2D g = tile.createGraphics();
+    g.setColor(Color.MAGENTA);
+    g.fillRect(96, 96, 16, 16);
+    g.dispose();
+    assertFalse(ZppExporter.equalPixels(Files.readAllBytes(TILE), encode(tile, 0.85f)));
+  }
+
+  @Test
+  public void testCroppedTileIsNotEqual() throws IOException {
+    BufferedImage tile = ImageIO.read(TILE.toFile());
+    assertFalse(ZppExporter.equalPixels(Files.readAllBytes(TILE), encode(tile.getSubimage(0, 0, 256, 128), 0.85f)));
+  }
+
+  /**
+   * Encodes the image as jpeg with the given quality
+   */
+  static byte[] encode(BufferedImage image, float quality) throws IOException {
+    ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+      ImageWriteParam param = writer.getDefaultWriteParam();
+      param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+      param.setCompressionQuality(quality);
+      writer.setOutput(ios);
+      writer.write(null, new IIOImage(image, null, null), param);
+    } finally {
+      writer.dispose();
+    }
+    return out.toByteArray();
+  }
+}
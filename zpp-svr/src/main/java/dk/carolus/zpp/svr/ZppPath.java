@@ -2,6 +2,7 @@ package dk.carolus.zpp.svr;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.regex.Matcher;
@@ -14,8 +15,16 @@ import java.util.regex.Pattern;
  * <ul>
  *   <li> The image properties file: <tt>/path/to/image/ImageProperties.xml</tt>
  *   <li> The image tiles: <tt>/path/to/image/TileGroup0/0-0-0.jpg</tt>
+ *   <li> The revisioned image tiles: <tt>/path/to/image/~revision/TileGroup0/0-0-0.jpg</tt>
  * </ul>
  * <p>
+ * The revision is a token derived from the modification time of the Zoomify image.
+ * It is published in the image properties, and since a revisioned tile path 
+ * changes whenever the image changes, the tile may be cached indefinitely by the client.
+ * <p>
+ * An image tile may also designate the low-quality variant of the tile, 
+ * which is served while the client is navigating the image.
+ * <p>
  * Furthermore, the Zoomify image of the path can either be in the form of 
  * a <i>file bundle</i> or a <i>ptiff</i> image:
  * <ul>
@@ -42,7 +51,7 @@ public class ZppPath {
 	 */
 	public enum PartType {
 		IMAGE_PROPERTIES("(?i)(.*/[^/]+)/ImageProperties.xml$"),
-		IMAGE_TILE("(?i)(.*/[^/]+)/TileGroup[\\d]+/([\\d]+-[\\d]+-[\\d]+.jpg)$");
+		IMAGE_TILE("(?i)(.*/[^/~][^/]*)/(?:~([0-9a-z]+)/)?TileGroup[\\d]+/([\\d]+-[\\d]+-[\\d]+.jpg)$");
 		
 		Pattern pattern;
 		PartType(String p) {
@@ -57,10 +66,21 @@ public class ZppPath {
 	PartType partType;
 	String part;
 	String cacheKey;
+	String revision;
+	String requestedRevision;
+	int revisionStart = -1, revisionEnd = -1;
+	boolean lowQuality;
+	int tileLevel, tileX, tileY;
 	Path zoomifyImage;
 	Path file;
 	BasicFileAttributes attrs;
 	
+	// Matches the zoom level and coordinates of a tile name
+	static final Pattern TILE_NAME_PATTERN = Pattern.compile("(?i)([\\d]+)-([\\d]+)-([\\d]+).jpg");
+	
+	// Matches the revision segment of a raw, i.e. still URL encoded, request URI
+	static final Pattern REVISION_URI_PATTERN = Pattern.compile("(?i)/(?:~|%7E)([0-9a-z]+)/TileGroup[\\d]+/[^/]+$");
+	
 	/**
 	 * Private constructor
 	 */
@@ -74,9 +94,19 @@ public class ZppPath {
 	 * @param path the path to resolve
 	 */
 	public static ZppPath resolveZoomifyPath(Path repoRoot, String path) throws Exception {
+		return resolveZoomifyPath(repoRoot, path, false);
+	}
+	
+	/**
+	 * Resolves the Zoomify path from the given path parameter.
+	 * 
+	 * @param repoRoot the root of the repository that holds the files.
+	 * @param path the path to resolve
+	 * @param lowQuality whether the low-quality variant of an image tile is requested
+	 */
+	public static ZppPath resolveZoomifyPath(Path repoRoot, String path, boolean lowQuality) throws Exception {
 		
 		ZppPath zppPath = new ZppPath();
-		zppPath.cacheKey = path;
 		
 		// Parse the path
 		Matcher m = PartType.IMAGE_PROPERTIES.getPattern().matcher(path);
@@ -88,8 +118,15 @@ public class ZppPath {
 			m = PartType.IMAGE_TILE.getPattern().matcher(path);
 			if (m.find()) {
 				zppPath.partType 		= PartType.IMAGE_TILE;
-				zppPath.part 			= m.group(2);
+				zppPath.part 			= m.group(3);
+				zppPath.lowQuality		= lowQuality;
+				zppPath.parseTileName();
 				zppPath.zoomifyImage	= resolveRepoPath(repoRoot, m.group(1));
+				if (m.group(2) != null) {
+					zppPath.requestedRevision	= m.group(2).toLowerCase();
+					zppPath.revisionStart		= m.start(2);
+					zppPath.revisionEnd			= m.end(2);
+				}
 			} else {
 				throw new Exception(String.format("Path %s is not a valid Zoomify path", path));
 			}
@@ -98,17 +135,35 @@ public class ZppPath {
 		// Next, figure out if the image is a Zoomify file bundle or a ptiff
 		BasicFileAttributes attrs = Files.readAttributes(zppPath.zoomifyImage, BasicFileAttributes.class);
 		if (attrs.isDirectory()) {
-			// Assume Zoomify file bundle
+			// Assume Zoomify file bundle.
+			// The revision is derived from the bundle's image properties file. 
+			// Bundles without an image properties file are served unrevisioned
 			zppPath.zoomifyType	= ZoomifyType.FILE_BUNDLE;
-			zppPath.file 		= resolveRepoPath(repoRoot, path);
+			zppPath.file 		= (zppPath.revisionStart == -1)
+										? resolveRepoPath(repoRoot, path)
+										: resolveRepoPath(repoRoot, m.group(1) + path.substring(zppPath.revisionEnd));
 			zppPath.attrs 		= Files.readAttributes(zppPath.file, BasicFileAttributes.class);
+			if (zppPath.partType == PartType.IMAGE_PROPERTIES) {
+				zppPath.revision = computeRevision(zppPath.attrs);
+			} else {
+				try {
+					zppPath.revision = computeRevision(Files.readAttributes(
+							zppPath.zoomifyImage.resolve("ImageProperties.xml"), 
+							BasicFileAttributes.class));
+				} catch (NoSuchFileException ex) {
+					zppPath.revision = null;
+				}
+			}
 		} else {
 			// Assume ptiff
 			zppPath.zoomifyType = ZoomifyType.PTIFF;
 			zppPath.file 		= zppPath.zoomifyImage;
 			zppPath.attrs 		= attrs;
+			zppPath.revision	= computeRevision(attrs);
 		}
 		
+		zppPath.computeCacheKey();
+		
 		// Lastly, add a security check to make sure that the file is actually inside the repository.
 		// The client may have used ".." for parenting out of the repository.
 		if (!zppPath.file.startsWith(repoRoot)) {
@@ -132,6 +187,60 @@ public class ZppPath {
 		return repoRoot.resolve(path).toRealPath();
 	}
 	
+	/**
+	 * Parses the zoom level and coordinates of the image tile
+	 */
+	private void parseTileName() {
+		Matcher m = TILE_NAME_PATTERN.matcher(part);
+		if (m.matches()) {
+			tileLevel	= Integer.parseInt(m.group(1));
+			tileX		= Integer.parseInt(m.group(2));
+			tileY		= Integer.parseInt(m.group(3));
+		}
+	}
+	
+	/**
+	 * Computes the cache key, which identifies the part within the current revision of the image
+	 */
+	private void computeCacheKey() {
+		cacheKey = zoomifyImage + "/" + part 
+					+ ((revision != null) ? "@" + revision : "")
+					+ ((lowQuality) ? "#low" : "");
+	}
+	
+	/**
+	 * Returns a path to a variant of this part, or to another part of the same ptiff image.
+	 * The file is shared with this path, so for a Zoomify file bundle, only variants 
+	 * of this part can be designated.
+	 * @param partType the part type
+	 * @param part the part
+	 * @param lowQuality whether the low-quality variant of the image tile is designated
+	 * @return the path to the part
+	 */
+	private ZppPath derivePart(PartType partType, String part, boolean lowQuality) {
+		ZppPath zppPath = new ZppPath();
+		zppPath.zoomifyType		= zoomifyType;
+		zppPath.partType		= partType;
+		zppPath.part			= part;
+		zppPath.lowQuality		= lowQuality;
+		zppPath.zoomifyImage	= zoomifyImage;
+		zppPath.file			= file;
+		zppPath.attrs			= attrs;
+		zppPath.revision		= revision;
+		zppPath.parseTileName();
+		zppPath.computeCacheKey();
+		return zppPath;
+	}
+	
+	/**
+	 * Computes the revision token from the modification time of the given file attributes
+	 * @param attrs the file attributes
+	 * @return the revision token
+	 */
+	private static String computeRevision(BasicFileAttributes attrs) {
+		return Long.toString(attrs.lastModifiedTime().toMillis(), 36);
+	}
+	
 	/** GETTERS **/
 	
 	public ZoomifyType getZoomifyType() { 
@@ -169,4 +278,107 @@ public class ZppPath {
 	public String getCacheKey() {
 		return cacheKey;
 	}
+
+	public boolean isLowQuality() {
+		return lowQuality;
+	}
+
+	public int getTileLevel() {
+		return tileLevel;
+	}
+
+	public int getTileX() {
+		return tileX;
+	}
+
+	public int getTileY() {
+		return tileY;
+	}
+
+	public String getRevision() {
+		return revision;
+	}
+
+	public String getRequestedRevision() {
+		return requestedRevision;
+	}
+
+	/**
+	 * Returns if the path designates a specific revision of the Zoomify image.
+	 * <p>
+	 * If the Zoomify image has no revision, e.g. a file bundle without an 
+	 * image properties file, the path is treated as unrevisioned.
+	 * @return if the path designates a specific revision
+	 */
+	public boolean isRevisioned() {
+		return requestedRevision != null && revision != null;
+	}
+
+	/**
+	 * Returns if the path designates a revision other than the current revision
+	 * @return if the path designates a stale revision
+	 */
+	public boolean isStaleRevision() {
+		return isRevisioned() && !requestedRevision.equals(revision);
+	}
+
+	/**
+	 * Returns the given request URI with the requested revision replaced by the current revision.
+	 * <p>
+	 * The raw request URI is used rather than the decoded path, so that the
+	 * URL encoding of the remaining path is preserved.
+	 * @param requestURI the raw request URI of this path
+	 * @return the request URI of the current revision
+	 */
+	public String getCurrentRevisionURI(String requestURI) {
+		Matcher m = REVISION_URI_PATTERN.matcher(requestURI);
+		if (revision == null || !m.find()) {
+			return requestURI;
+		}
+		return requestURI.substring(0, m.start(1)) + revision + requestURI.substring(m.end(1));
+	}
+
+	/**
+	 * Returns the path to the full-quality variant of this image tile
+	 * @return the path to the full-quality image tile
+	 */
+	public ZppPath getFullQualityPath() {
+		return (lowQuality) ? derivePart(partType, part, false) : this;
+	}
+
+	/**
+	 * Returns the path to the image properties of this ptiff image, 
+	 * or null for a Zoomify file bundle
+	 * @return the path to the image properties
+	 */
+	public ZppPath getImagePropertiesPath() {
+		if (zoomifyType != ZoomifyType.PTIFF) {
+			return null;
+		}
+		return derivePart(PartType.IMAGE_PROPERTIES, "ImageProperties.xml", false);
+	}
+
+	/**
+	 * Returns the path to the tile at the next lower zoom level, which covers this image tile
+	 * at half the resolution. Returns null, if this is a tile of the lowest zoom level, or of
+	 * a Zoomify file bundle, where the tile group of the parent tile is not known.
+	 * @return the path to the parent tile
+	 */
+	public ZppPath getParentTilePath() {
+		if (zoomifyType != ZoomifyType.PTIFF || partType != PartType.IMAGE_TILE || tileLevel == 0) {
+			return null;
+		}
+		return derivePart(PartType.IMAGE_TILE, (tileLevel - 1) + "-" + (tileX / 2) + "-" + (tileY / 2) + ".jpg", false);
+	}
+
+	/**
+	 * Returns the path to the given tile at the zoom level of this ptiff image tile,
+	 * in the same variant, i.e. full-quality or low-quality, as this tile.
+	 * @param x the horizontal tile coordinate
+	 * @param y the vertical tile coordinate
+	 * @return the path to the tile
+	 */
+	public ZppPath getTilePath(int x, int y) {
+		return derivePart(PartType.IMAGE_TILE, tileLevel + "-" + x + "-" + y + ".jpg", lowQuality);
+	}
 }
@@ -1,5 +1,10 @@
 package dk.carolus.zpp.svr;
 
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -9,7 +14,14 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
 import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
@@ -33,13 +45,23 @@ import dk.carolus.zpp.svr.ZppPath.PartType;
  * <ul>
  *   <li> The image properties file: <tt>/path/to/image.tif/ImageProperties.xml</tt>
  *   <li> The image tiles: <tt>/path/to/image.tif/TileGroup0/0-0-0.jpg</tt>
+ *   <li> The revisioned image tiles: <tt>/path/to/image.tif/~revision/TileGroup0/0-0-0.jpg</tt>
  * </ul>
  * <p>
+ * Revisioned tiles are served as immutable. Requests for a stale revision
+ * are redirected to the current revision of the tile.
+ * <p>
+ * A cheap low-quality variant of an image tile is served for the request parameter 
+ * <tt>quality=low</tt>. The variant is derived from the cached tiles, at half the resolution
+ * and a low jpeg quality, and is used by the viewer while the user is navigating the image.
+ * <p>
  * The underlying Zoomify image may either be in the form of a Zoomify file bundle
  * or a tiled pryramid tiff. 
  * <p>
  * Important: If you run this from, say, Eclipse, be sure to add 
  * <code>-Drepo.root=/path/to/zpp/testrepo</code> to the runtime arguments.
+ * Add <code>-Dzpp.backend=java</code> to use the pure-Java ptiff backend rather 
+ * than the native library.
  * 
  * @author peder
  */
@@ -47,6 +69,15 @@ import dk.carolus.zpp.svr.ZppPath.PartType;
 public class ZppServlet extends HttpServlet {
 
 	static final long TTL_SECONDS = 24 * 60 * 60; // One day
+	static final long IMMUTABLE_TTL_SECONDS = 365 * 24 * 60 * 60; // One year
+	
+	// Low-quality tile variant
+	static final String LOW_QUALITY_PARAM = "quality";
+	static final String LOW_QUALITY_VALUE = "low";
+	static final int LOW_QUALITY_SCALE = 2;
+	static final float LOW_QUALITY_JPEG_QUALITY = 0.4f;
+	static final int LOW_QUALITY_LOCK_NO = 64;
+	static final Pattern TILE_SIZE_PATTERN = Pattern.compile("(?i)TILESIZE=\"([\\d]+)\"");
 		
 	static final Logger log = Logger.getLogger(ZppServlet.class.getName());
 	
@@ -57,17 +88,34 @@ public class ZppServlet extends HttpServlet {
 	// Cache
 	static final String IMAGE_CACHE_NAME = "ImageCache";
 	private Cache imageCache;
+	
+	// Locks guarding the creation of low-quality tiles from the same parent tile
+	private final Object[] lowQualityLocks = new Object[LOW_QUALITY_LOCK_NO];
+	{
+		for (int i = 0; i < lowQualityLocks.length; i++) {
+			lowQualityLocks[i] = new Object();
+		}
+	}
     
 	/**
 	 * Called when the servlet is initialized
 	 */
 	@Override 
-	public void init() {
+	public void init() throws ServletException {
 		processPool = Executors.newFixedThreadPool(PROCESS_POOL_SIZE);
 		log.info("Created processor pool with " + PROCESS_POOL_SIZE + " threads");
 		
 		imageCache = CacheManager.getInstance().getCache("ImageCache");
 		log.info("Instantiated image cache " + imageCache.getCacheConfiguration());
+		
+		// Initialize the ptiff backend eagerly, rather than upon the first request
+		try {
+			ZppImage.Backend backend = ZppImage.getDefaultBackend();
+			ZppImage.initialize(backend);
+			log.info("Initialized the " + backend + " ptiff backend");
+		} catch (Exception ex) {
+			throw new ServletException("Error initializing the ptiff backend", ex);
+		}
 	}
 
 	/**
@@ -88,7 +136,8 @@ public class ZppServlet extends HttpServlet {
 	@Override
 	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
 		// Execute the request asynchronously
-		processPool.execute(new AsyncRequestProcessor(request.startAsync(), request.getPathInfo()));
+		boolean lowQuality = LOW_QUALITY_VALUE.equals(request.getParameter(LOW_QUALITY_PARAM));
+		processPool.execute(new AsyncRequestProcessor(request.startAsync(), request.getPathInfo(), lowQuality));
 	}
 	
 	/**
@@ -97,7 +146,7 @@ public class ZppServlet extends HttpServlet {
 	 * @param response servlet response
 	 * @throws IOException 
 	 */
-	protected void asyncDoGet(HttpServletRequest request, HttpServletResponse response, String pathInfo) throws IOException, ServletException {
+	protected void asyncDoGet(HttpServletRequest request, HttpServletResponse response, String pathInfo, boolean lowQuality) throws IOException, ServletException {
 		
 		long t0 = System.currentTimeMillis();
 		
@@ -112,7 +161,14 @@ public class ZppServlet extends HttpServlet {
 			// Extract the desired image file and Zoomify path
 			ZppPath zppPath = ZppPath.resolveZoomifyPath(
 					repoRoot,
-					pathInfo);
+					pathInfo,
+					lowQuality);
+			
+			// Redirect requests for a stale revision to the current revision
+			if (zppPath.isStaleRevision()) {
+				redirectToCurrentRevision(request, response, zppPath);
+				return;
+			}
 			
 			// Check whether to use the cached version or not
 			// Also, sets the caching response headers.
@@ -128,12 +184,14 @@ public class ZppServlet extends HttpServlet {
 			if (data == null) {
 				// Send the Zoomify part back in the response 
 				response.setContentType(zppPath.getContentType());
-				if (zppPath.getZoomifyType() == ZppPath.ZoomifyType.PTIFF) {
-					returnedFileType = "ptiff data";
-					data = readPTiffPart(zppPath);
+				returnedFileType = (zppPath.getZoomifyType() == ZppPath.ZoomifyType.PTIFF)
+										? "ptiff data"
+										: "Zoomify file bundle data";
+				if (zppPath.isLowQuality()) {
+					returnedFileType = "low-quality " + returnedFileType;
+					data = createLowQualityTile(zppPath);
 				} else {
-					returnedFileType = "Zoomify file bundle data";
-					data = readFileBundleResponse(zppPath);
+					data = readPart(zppPath);
 				}
 				cacheOnServer(zppPath, data);
 			}
@@ -167,6 +225,8 @@ public class ZppServlet extends HttpServlet {
 	 * <p>
 	 * A combination of last modification time and file length
 	 * is considered good enough for a weak eTag identifier.
+	 * <p>
+	 * Revisioned parts never change, and are cached as immutable for a year.
 	 * 
 	 * @param request servlet request
 	 * @param response servlet response
@@ -176,9 +236,14 @@ public class ZppServlet extends HttpServlet {
 	boolean checkUseClientCachedVersion(HttpServletRequest request, HttpServletResponse response, ZppPath zppPath) {
 		// Set response headers 
 		Date now = Calendar.getInstance().getTime();
+		long ttl = (zppPath.isRevisioned()) ? IMMUTABLE_TTL_SECONDS : TTL_SECONDS;
 		response.setDateHeader("Last-Modified", zppPath.getLastModifiedTime());
-		response.setDateHeader("Expires", (now.getTime() + TTL_SECONDS * 1000L));
-		response.setHeader("Cache-Control","max-age=" + TTL_SECONDS);
+		response.setDateHeader("Expires", (now.getTime() + ttl * 1000L));
+		if (zppPath.isRevisioned()) {
+			response.setHeader("Cache-Control","public, max-age=" + ttl + ", immutable");
+		} else {
+			response.setHeader("Cache-Control","max-age=" + ttl);
+		}
 		
 		long ifLastModified = request.getDateHeader("If-Modified-Since");
 		if (ifLastModified != -1 && ifLastModified < zppPath.getLastModifiedTime()) {
@@ -188,7 +253,8 @@ public class ZppServlet extends HttpServlet {
 		}
 		
 		// Check if there is an eTag match
-		String weTag = "W/\"" + zppPath.getLastModifiedTime() + "_" + zppPath.getSize() + "\""; // Weak eTag
+		String weTag = "W/\"" + zppPath.getLastModifiedTime() + "_" + zppPath.getSize() 
+				+ ((zppPath.isLowQuality()) ? "_low" : "") + "\""; // Weak eTag
 		response.setHeader("ETag", weTag);
 		String ifNoneMatch = request.getHeader("If-None-Match");
 		if (weTag.equals(ifNoneMatch)) {
@@ -201,6 +267,47 @@ public class ZppServlet extends HttpServlet {
 		return false;
 	}	
 	
+	/**
+	 * Redirects the client to the current revision of the requested Zoomify image part.
+	 * <p>
+	 * The redirect itself must not be cached, since it changes with the revision.
+	 * 
+	 * @param request servlet request
+	 * @param response servlet response
+	 * @param zppPath the Zoomify part with a stale revision
+	 */
+	void redirectToCurrentRevision(HttpServletRequest request, HttpServletResponse response, ZppPath zppPath) throws IOException {
+		String location = zppPath.getCurrentRevisionURI(request.getRequestURI());
+		if (request.getQueryString() != null) {
+			location += "?" + request.getQueryString();
+		}
+		response.setHeader("Cache-Control","no-cache");
+		response.sendRedirect(response.encodeRedirectURL(location));
+		log.log(Level.FINE, 
+				String.format("Redirecting stale revision %s of %s to %s",
+						zppPath.getRequestedRevision(), 
+						zppPath.getFile(),
+						zppPath.getRevision()));
+	}
+	
+	/**
+	 * Adds the revision of the Zoomify image as a REVISION attribute
+	 * to the image properties.
+	 * 
+	 * @param data the image properties
+	 * @param revision the revision of the Zoomify image
+	 * @return the updated image properties
+	 */
+	byte[] addRevision(byte[] data, String revision) throws IOException {
+		String props = new String(data, "UTF-8");
+		if (props.contains(" REVISION=")) {
+			return data;
+		}
+		return props
+				.replaceFirst("(?i)<IMAGE_PROPERTIES", "$0 REVISION=\"" + revision + "\"")
+				.getBytes("UTF-8");
+	}
+	
 	/**
 	 * Checks if the given Zoomify image part is cached in the {@code imageCache}.
 	 * Returns the cached version, or null, if it is not cached.
@@ -223,6 +330,39 @@ public class ZppServlet extends HttpServlet {
 		imageCache.put(new Element(zppPath.getCacheKey(), data));
 	}
 	
+	/**
+	 * Reads and returns the requested Zoomify image part.
+	 * The revision is added to the image properties.
+	 * 
+	 * @param zppPath the Zoomify image part
+	 * @return the byte data
+	 */
+	byte[] readPart(ZppPath zppPath) throws Exception {
+		byte[] data = (zppPath.getZoomifyType() == ZppPath.ZoomifyType.PTIFF)
+							? readPTiffPart(zppPath)
+							: readFileBundleResponse(zppPath);
+		if (zppPath.getPartType() == PartType.IMAGE_PROPERTIES) {
+			data = addRevision(data, zppPath.getRevision());
+		}
+		return data;
+	}
+	
+	/**
+	 * Returns the requested Zoomify image part from the {@code imageCache}.
+	 * If it is not cached, the part is read and cached.
+	 * 
+	 * @param zppPath the Zoomify image part
+	 * @return the byte data
+	 */
+	byte[] readCachedPart(ZppPath zppPath) throws Exception {
+		byte[] data = getServerCachedVersion(zppPath);
+		if (data == null) {
+			data = readPart(zppPath);
+			cacheOnServer(zppPath, data);
+		}
+		return data;
+	}
+	
 	/**
 	 * Reads and returns the requested Zoomify image part.
 	 * <p>
@@ -263,6 +403,149 @@ public class ZppServlet extends HttpServlet {
 	}
 
 	
+	/**
+	 * Creates the low-quality variant of the given image tile.
+	 * <p>
+	 * For a ptiff, the tile at the next lower zoom level covers the tile at half the 
+	 * resolution, i.e. the {@code LOW_QUALITY_SCALE}. Hence, the variant is cropped from 
+	 * the (cached) parent tile, rather than downsampled from the tile itself. The parent
+	 * tile is shared by four tiles, so it is decoded once, and the low-quality variants 
+	 * of all four tiles are cached. Otherwise, the (cached) full-quality tile is downsampled.
+	 * <p>
+	 * Note that for jpeg compressed ptiffs, where the full-quality tile is a raw copy 
+	 * of the ptiff tile, the variant still costs a jpeg decoding and encoding.
+	 * 
+	 * @param zppPath the low-quality Zoomify image tile
+	 * @return the low-quality jpeg tile
+	 */
+	byte[] createLowQualityTile(ZppPath zppPath) throws Exception {
+		ZppPath parentPath = zppPath.getParentTilePath();
+		if (parentPath != null) {
+			// Concurrent requests for the tiles of the same parent tile await the first one
+			Object lock = lowQualityLocks[(parentPath.getCacheKey().hashCode() & 0x7fffffff) % lowQualityLocks.length];
+			synchronized (lock) {
+				byte[] data = getServerCachedVersion(zppPath);
+				if (data == null) {
+					data = createLowQualityQuadrants(zppPath, parentPath);
+				}
+				if (data != null) {
+					return data;
+				}
+			}
+		}
+		
+		// Downsample the tile. Round up, so that the client can scale it back to the full tile size
+		BufferedImage tile = readTile(zppPath.getFullQualityPath());
+		int w = (tile.getWidth() + LOW_QUALITY_SCALE - 1) / LOW_QUALITY_SCALE;
+		int h = (tile.getHeight() + LOW_QUALITY_SCALE - 1) / LOW_QUALITY_SCALE;
+		BufferedImage scaled = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = scaled.createGraphics();
+		try {
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g.drawImage(tile, 0, 0, w, h, null);
+		} finally {
+			g.dispose();
+		}
+		return encodeLowQualityTile(scaled);
+	}
+	
+	/**
+	 * Crops the low-quality variants of the four tiles covered by the given parent tile
+	 * from the decoded parent tile, and caches them.
+	 * 
+	 * @param zppPath the requested low-quality Zoomify image tile
+	 * @param parentPath the parent tile of the requested tile
+	 * @return the requested low-quality jpeg tile, or null if it is not covered by the parent tile
+	 */
+	byte[] createLowQualityQuadrants(ZppPath zppPath, ZppPath parentPath) throws Exception {
+		BufferedImage parent = readTile(parentPath);
+		int half = getTileSize(zppPath.getImagePropertiesPath()) / LOW_QUALITY_SCALE;
+		byte[] result = null;
+		for (int qy = 0; qy < LOW_QUALITY_SCALE; qy++) {
+			for (int qx = 0; qx < LOW_QUALITY_SCALE; qx++) {
+				ZppPath tilePath = zppPath.getTilePath(
+						parentPath.getTileX() * LOW_QUALITY_SCALE + qx, 
+						parentPath.getTileY() * LOW_QUALITY_SCALE + qy);
+				boolean requested = tilePath.getCacheKey().equals(zppPath.getCacheKey());
+				if (!requested && getServerCachedVersion(tilePath) != null) {
+					continue;
+				}
+				
+				// Tiles beyond the edge of the image are not covered by the parent tile
+				int x = qx * half;
+				int y = qy * half;
+				int w = Math.min(half, parent.getWidth() - x);
+				int h = Math.min(half, parent.getHeight() - y);
+				if (w <= 0 || h <= 0) {
+					continue;
+				}
+				BufferedImage quadrant = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+				Graphics2D g = quadrant.createGraphics();
+				try {
+					g.drawImage(parent, -x, -y, null);
+				} finally {
+					g.dispose();
+				}
+				byte[] data = encodeLowQualityTile(quadrant);
+				cacheOnServer(tilePath, data);
+				if (requested) {
+					result = data;
+				}
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Compresses the given low-quality tile with the jpeg quality {@code LOW_QUALITY_JPEG_QUALITY}
+	 * 
+	 * @param tile the low-quality tile
+	 * @return the low-quality jpeg tile
+	 */
+	byte[] encodeLowQualityTile(BufferedImage tile) throws Exception {
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(LOW_QUALITY_JPEG_QUALITY);
+			writer.setOutput(ios);
+			writer.write(null, new IIOImage(tile, null, null), param);
+		} finally {
+			writer.dispose();
+		}
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Reads and decodes the given (cached) image tile
+	 * 
+	 * @param zppPath the Zoomify image tile
+	 * @return the decoded tile
+	 */
+	BufferedImage readTile(ZppPath zppPath) throws Exception {
+		BufferedImage tile = ImageIO.read(new ByteArrayInputStream(readCachedPart(zppPath)));
+		if (tile == null) {
+			throw new Exception("Could not decode tile " + zppPath.getPart());
+		}
+		return tile;
+	}
+	
+	/**
+	 * Returns the tile size of the given (cached) image properties
+	 * 
+	 * @param zppPath the Zoomify image properties
+	 * @return the tile size
+	 */
+	int getTileSize(ZppPath zppPath) throws Exception {
+		Matcher m = TILE_SIZE_PATTERN.matcher(new String(readCachedPart(zppPath), "UTF-8"));
+		if (!m.find()) {
+			throw new Exception("No tile size in the image properties of " + zppPath.getFile());
+		}
+		return Integer.parseInt(m.group(1));
+	}
+
+	
 	/**
 	 * Helper class that instigates the asynchronous processing
 	 * of the request.
@@ -271,14 +554,16 @@ public class ZppServlet extends HttpServlet {
 		
 		AsyncContext asyncContext;
 		String pathInfo;
+		boolean lowQuality;
 		
 		/**
 		 * Constructor
 		 * @param asyncContext
 		 */
-		AsyncRequestProcessor(AsyncContext asyncContext, String pathInfo) {
+		AsyncRequestProcessor(AsyncContext asyncContext, String pathInfo, boolean lowQuality) {
 			this.asyncContext = asyncContext;
 			this.pathInfo = pathInfo;
+			this.lowQuality = lowQuality;
 		}
 		
 		/**
@@ -290,7 +575,8 @@ public class ZppServlet extends HttpServlet {
 				asyncDoGet(
 						(HttpServletRequest)asyncContext.getRequest(), 
 						(HttpServletResponse)asyncContext.getResponse(),
-						pathInfo);
+						pathInfo,
+						lowQuality);
 				
 			} catch (IOException | ServletException e) {
 				// Already handled
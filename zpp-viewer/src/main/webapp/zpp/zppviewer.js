@@ -34,7 +34,10 @@
       thumbnail:        false,
       showToolbar:      true,
       toolbarPos:       "bottom right",
-      toolbarIconSize:  32
+      toolbarIconSize:  32,
+      bitmapDecoding:   true,
+      cacheSize:        64,
+      progressive:      true
     },
     
     /**
@@ -65,7 +68,10 @@
       this.imageWidth       = this.options.imageWidth || this._attrIntValue("zpp-imageWidth");
       this.imageHeight      = this.options.imageHeight || this._attrIntValue("zpp-imageHeight");
       this.tileSize         = this.options.tileSize || this._attrIntValue("zpp-tileSize") || null;
+      this.revision         = this.options.revision || this.element.attr("zpp-revision") || null;
       this.background       = this.options.background || this.element.attr("zpp-background");
+      this.cacheBudget      = this.options.cacheSize * 1024 * 1024;
+      this.progressive      = this.options.progressive;
       this.cssWidth         = this.cssWidth0  = parseInt($(this.canvas).css("width"));
       this.cssHeight        = this.cssHeight0 = parseInt($(this.canvas).css("height"));
       
@@ -81,20 +87,34 @@
       this.scale  = 1.0;
       this.offset = { "x": 0.0, "y": 0.0, "x0" : 0.0, "y0": 0.0 };
       
+      // Tiles are decoded using createImageBitmap, where supported. 
+      // The tiles are fetched via XMLHttpRequest, so this is restricted to same-origin images.
+      this.bitmapDecoding   = this.options.bitmapDecoding &&
+                              typeof window.createImageBitmap !== "undefined" &&
+                              this._isSameOrigin(this.src);
+      
+      // Decoded tiles of all zoom levels are cached until the cache budget is exceeded.
+      // The frame number is incremented for each full repaint
+      this.cachedTiles      = [];
+      this.cachedBytes      = 0;
+      this.frameNo          = 0;
+      
+      // Pending repaint. A null dirtyTiles list denotes a full repaint
+      this.dirtyTiles       = [];
+      
+      // Whether the user is currently panning or zooming the image
+      this.moving           = false;
+      
       // Register events
       this._bindEvents();
       
-      // Pre-load the thumbnail, if requested
-      if (this.thumbnail) {
-        this._loadThumbnail();
-      }
-      
       // Create the toolbar
       if (this.showToolbar && this.showToolbar != "none") {
         this._createToolbar();
       }
     
-      // Start loading images...
+      // Start loading images. The thumbnail, if requested, is loaded once the 
+      // image properties, and hence the revision, are known
       if (!this.tileSize || !this.imageWidth || !this.imageHeight) {
         this._loadImageProperties();
       } else {
@@ -111,6 +131,12 @@
       return (typeof val !== "undefined" && val) ? parseInt(val) : null;
     },
     
+    _isSameOrigin: function(url) {
+      var a = document.createElement("a");
+      a.href = url;
+      return a.protocol == window.location.protocol && a.host == window.location.host;
+    },
+    
     /**
      * Mobile devices often have a super-pixel resolution.
      * See: http://www.html5rocks.com/en/tutorials/canvas/hidpi/
@@ -336,6 +362,7 @@
       this.offset.x = this.offset.x0 + e.gesture.deltaX * this.deviceRatio;
       this.offset.y = this.offset.y0 + e.gesture.deltaY * this.deviceRatio;
       
+      this._startMoving();
       this._requestRepaint();
     },
 
@@ -380,6 +407,7 @@
       this.offset.x = loc.x - (loc.x - e.gesture.startEvent.x0) * factor;
       this.offset.y = loc.y - (loc.y - e.gesture.startEvent.y0) * factor;
       
+      this._startMoving();
       this._requestRepaint();
     },
     
@@ -546,10 +574,29 @@
         
         // Check if the zoom level should be changed
         this._checkZoomLevelAsync();
+        this._startMoving();
         this._requestRepaint();
       }
     },
     
+    /**
+     * Flags that the user is panning or zooming the image.
+     * The moving state ends 300 ms after the last movement, at which point
+     * low-quality tiles are replaced by the full tiles.
+     */
+    _startMoving: function() {
+      this.moving = true;
+      if (this.movingTimer) {
+        clearTimeout(this.movingTimer);
+      }
+      var self = this;
+      this.movingTimer = setTimeout(function(){
+        self.moving = false;
+        delete self.movingTimer;
+        self._requestRepaint();
+      }, 300);
+    },
+    
     /**
      * Returns the mouse location for various type of events
      * within the canvas
@@ -602,6 +649,8 @@
           self.imageWidth = parseInt($(imgXml).attr("WIDTH"));
           self.imageHeight = parseInt($(imgXml).attr("HEIGHT"));
           self.tileSize = parseInt($(imgXml).attr("TILESIZE"));
+          // The revision is only provided by the Zpp server
+          self.revision = $(imgXml).attr("REVISION") || self.revision;
           
           if (!data || !self.imageWidth || !self.imageHeight || !self.tileSize) {
             console.error("Not a properly formatted " + this.src + "/ImageProperties.xml");
@@ -624,6 +673,9 @@
      * Calculates hte zoom levels from the image dimension and tile size
      */
     _calculateZoomLevels: function() {
+      if (this.thumbnail) {
+        this._loadThumbnail();
+      }
       this.zoomLevels = [];
       
       // Compute the zoom levels
@@ -702,10 +754,12 @@
         this._adjustScale();
       }
       
-      // Check if the level was changed
+      // Check if the level was changed.
+      // The decoded tiles of the old level remain cached
       if (this.level != saveLevel) {
-        this._releaseImages(this.zoomLevels[saveLevel]);
+        this._cancelLoading(this.zoomLevels[saveLevel]);
         this._loadZoomLevel();
+        this._requestRepaint();
       }
     },
     
@@ -721,7 +775,6 @@
       this._log("Loading zoom level " + this.level);
       
       var zoomLevel =  this.zoomLevels[this.level];
-      this._releaseImages(zoomLevel);
       
       // Compute the tiles that should be reloaded
       var tiles = this._computeRepaintTiles();
@@ -736,8 +789,10 @@
      * Releases memory from loaded images for all zoom levels
      */
     _releaseAllImages: function() {
-      for (zoomlevel in this.zoomlevels) {
-        _releaseImages(zoomlevel);
+      if (this.zoomLevels) {
+        for (var z = 0; z < this.zoomLevels.length; z++) {
+          this._releaseImages(this.zoomLevels[z]);
+        }
       }
     },
     
@@ -745,32 +800,37 @@
      * Releases memory from loaded images for the given zoom level
      */
     _releaseImages: function(zoomlevel) {
-      for (img in zoomlevel.images) {
-        this._releaseImage(img);
+      for (var index = 0; index < zoomlevel.images.length; index++) {
+        if (zoomlevel.images[index] != null) {
+          this._uncacheImage(zoomlevel.images[index]);
+        }
       }
+      this.cachedTiles = $.grep(this.cachedTiles, function(tile) { return tile.level != zoomlevel.level; });
       delete zoomlevel.images;
       zoomlevel.images = new Array();
-      for (img in zoomlevel.loading) {
-        this._releaseImage(img);
+      this._cancelLoading(zoomlevel);
+    },
+    
+    /**
+     * Cancels the loading of all images for the given zoom level
+     */
+    _cancelLoading: function(zoomlevel) {
+      for (var index = 0; index < zoomlevel.loading.length; index++) {
+        this._releaseImage(zoomlevel.loading[index]);
       }
       delete zoomlevel.loading;
       zoomlevel.loading = new Array();
     },
     
     /**
-     * Release all images ouside the given tiles bounding box
+     * Cancels the loading of all images ouside the given tiles bounding box
      */
-    _releaseImagesOutsideTiles: function(zoomLevel, tiles) {
+    _cancelLoadingOutsideTiles: function(zoomLevel, tiles) {
       for (var y = 0; y < zoomLevel.vertTileNo; y++) {
         for (var x = 0; x < zoomLevel.horizTileNo; x++) {
           if (y < tiles.y || y >= tiles.y + tiles.h ||
               x < tiles.x || x >= tiles.x + tiles.w) {
             var index = y * zoomLevel.horizTileNo + x;
-            if (zoomLevel.images[index] != null) {
-              this._releaseImage(zoomLevel.images[index]);
-              zoomLevel.images[index] = null;
-              //this._log("Releasing cached image " + x + ", " + y);
-            }
             if (zoomLevel.loading[index] != null) {
               this._releaseImage(zoomLevel.loading[index]);
               zoomLevel.loading[index] = null;
@@ -781,41 +841,125 @@
       }
     },
     
+    /**
+     * Caches the decoded image of the given tile
+     */
+    _cacheImage: function(zoomLevel, x, y, img, lowQuality) {
+      var tile = { 
+            image:      img, 
+            level:      zoomLevel.level, 
+            index:      y * zoomLevel.horizTileNo + x, 
+            bytes:      img.width * img.height * 4,  // Decoded RGBA 
+            lastUsed:   this.frameNo,
+            lowQuality: lowQuality
+            };
+      
+      // A full tile replaces the cached low-quality tile, but not vice versa
+      var cached = zoomLevel.images[tile.index];
+      if (cached != null) {
+        if (lowQuality) {
+          this._releaseImage(img);
+          return;
+        }
+        this._uncacheImage(cached);
+        this.cachedTiles.splice($.inArray(cached, this.cachedTiles), 1);
+      }
+      zoomLevel.images[tile.index] = tile;
+      this.cachedTiles.push(tile);
+      this.cachedBytes += tile.bytes;
+      this._enforceCacheBudget();
+    },
+    
+    /**
+     * Releases the decoded image of the given cached tile
+     */
+    _uncacheImage: function(tile) {
+      this.zoomLevels[tile.level].images[tile.index] = null;
+      this.cachedBytes -= tile.bytes;
+      this._releaseImage(tile.image);
+    },
+    
+    /**
+     * Evicts the least recently painted tiles until the decoded
+     * bytes of the cached tiles are within the cache budget.
+     * Tiles painted in the current frame, i.e. the visible tiles, 
+     * and tiles loaded since are never evicted.
+     */
+    _enforceCacheBudget: function() {
+      if (this.cachedBytes <= this.cacheBudget) {
+        return;
+      }
+      this.cachedTiles.sort(function(a, b) { return a.lastUsed - b.lastUsed; });
+      var evictNo = 0;
+      while (evictNo < this.cachedTiles.length && 
+             this.cachedBytes > this.cacheBudget &&
+             this.cachedTiles[evictNo].lastUsed < this.frameNo) {
+        this._uncacheImage(this.cachedTiles[evictNo++]);
+      }
+      this.cachedTiles.splice(0, evictNo);
+      //this._log("Evicted %d cached tiles", evictNo);
+    },
+    
     /**
      * It's not easy to get the browser to release the memory of loaded images.
      * The most robust solution seems to be to point the image "src" attribute
      * to a dummy image...
+     * Image bitmaps are closed and tile requests aborted.
      */
     _releaseImage: function(img) {
       if (img != null) {
-        img.onload = null;
-        img.src = this.emptyImageUrl;
-        //img.src = null;
-        //delete img.src;
+        if (typeof img.close === "function") {
+          img.close();
+        } else if (img.xhr) {
+          img.released = true;
+          img.xhr.abort();
+        } else {
+          img.onload = null;
+          img.src = this.emptyImageUrl;
+          //img.src = null;
+          //delete img.src;
+        }
       }
     },
     
     /**
-     * Loads the given image
+     * Loads the given image.
+     * While the user is moving, the low-quality variant of the tile is loaded,
+     * provided that the image is served by the Zpp server, i.e. has a revision.
      */
     _loadImage: function(zoomLevel, x, y) {
       var index = y * zoomLevel.horizTileNo + x;
+      var lowQuality = (this.progressive && this.revision && this.moving) ? true : false;
       
-      // Check if it is already being loaded
-      if (zoomLevel.loading[index] != null) {
+      // Check if it is already cached or being loaded.
+      // The low-quality variant of the tile is superseded by the full tile
+      var cached = zoomLevel.images[index], loading = zoomLevel.loading[index];
+      if ((cached != null && (!cached.lowQuality || lowQuality)) ||
+          (loading != null && (!loading.lowQuality || lowQuality))) {
         return;
       }
+      if (loading != null) {
+        this._releaseImage(loading);
+        zoomLevel.loading[index] = null;
+      }
       
       var tileGroup = zoomLevel.tileGroup[index];
       var self = this;
       var src = this.src 
+                  + ((this.revision) ? "/~" + this.revision : "")
                   + "/TileGroup" + tileGroup
-                  + "/" + zoomLevel.level + "-" + x + "-" + y + ".jpg";
+                  + "/" + zoomLevel.level + "-" + x + "-" + y + ".jpg"
+                  + ((lowQuality) ? "?quality=low" : "");
       //this._log("Loading %s", src);
+      if (this.bitmapDecoding) {
+        this._loadBitmap(zoomLevel, x, y, src, lowQuality);
+        return;
+      }
       var img = new Image();
       img.setAttribute("tileX", x);
       img.setAttribute("tileY", y);
       img.setAttribute("level", zoomLevel.level);
+      img.lowQuality = lowQuality;
       img.onload = $.proxy(this._imageLoaded, this, img);
       zoomLevel.loading[index] = img;
       // Trigger the actual loading of the image
@@ -823,11 +967,41 @@
     },
     
     /**
-     * Loads the thumbnail image
+     * Loads the given image as a blob and decodes it using createImageBitmap,
+     * which does not block the main thread
+     */
+    _loadBitmap: function(zoomLevel, x, y, src, lowQuality) {
+      var self = this;
+      var request = { xhr: new XMLHttpRequest(), released: false, lowQuality: lowQuality };
+      request.xhr.open("GET", src, true);
+      request.xhr.responseType = "blob";
+      request.xhr.onload = function() {
+        if (request.released || request.xhr.status != 200) {
+          return;
+        }
+        createImageBitmap(request.xhr.response).then(function(bitmap) {
+          if (request.released) {
+            bitmap.close();
+          } else {
+            self._tileLoaded(zoomLevel.level, x, y, bitmap, lowQuality);
+          }
+        }, function() {
+          console.error("Unable to decode " + src);
+        });
+      };
+      zoomLevel.loading[y * zoomLevel.horizTileNo + x] = request;
+      // Trigger the actual loading of the image
+      request.xhr.send();
+    },
+    
+    /**
+     * Loads the thumbnail image, i.e. the tile of the lowest zoom level
      */
     _loadThumbnail: function() {
       var self = this;
-      var src = this.src + "/TileGroup0/0-0-0.jpg";
+      var src = this.src 
+                  + ((this.revision) ? "/~" + this.revision : "")
+                  + "/TileGroup0/0-0-0.jpg";
       this._log("Loading thumbnail %s", src);
       var img = new Image();
       img.onload = function() { self.thumbImage = this; };
@@ -839,27 +1013,35 @@
      * Callback when an image is loaded
      */
     _imageLoaded: function(img) {
-      var level = parseInt(img.getAttribute("level"));
+      this._tileLoaded(
+          parseInt(img.getAttribute("level")),
+          parseInt(img.getAttribute("tileX")),
+          parseInt(img.getAttribute("tileY")),
+          img,
+          img.lowQuality);
+    },
+    
+    /**
+     * Called when the image of a tile has been loaded and decoded.
+     * Caches the image, and repaints the tile if it is part of the current zoom level
+     */
+    _tileLoaded: function(level, x, y, img, lowQuality) {
       var zoomLevel = this.zoomLevels[level];
-      var x = parseInt(img.getAttribute("tileX"));
-      var y = parseInt(img.getAttribute("tileY"));
-      var index = y * zoomLevel.horizTileNo + x;
-      zoomLevel.loading[index] = null;
+      zoomLevel.loading[y * zoomLevel.horizTileNo + x] = null;
+      this._cacheImage(zoomLevel, x, y, img, lowQuality);
       if (this.level == level) {
-        zoomLevel.images[index] = img;
-        this._repaint();
-      } else {
-        this._releaseImage(img);
+        this._requestRepaint({ x: x, y: y });
       }
     },
 
     /**
-     * Returns the cached image for the given tile and zoom level
+     * Returns the cached tile for the given tile and zoom level
      */
-    _getImage: function(zoomLevel, x, y) {
-      var index = y * zoomLevel.horizTileNo + x;
-      if (zoomLevel.images[index] != null) {
-        return zoomLevel.images[index];
+    _getCachedTile: function(zoomLevel, x, y) {
+      var tile = zoomLevel.images[y * zoomLevel.horizTileNo + x];
+      if (tile != null) {
+        tile.lastUsed = this.frameNo;
+        return tile;
       };
       return null;
     },
@@ -936,28 +1118,79 @@
     },
 
     /**
-     * Schedules a repaint using built in support
+     * Schedules a repaint using built in support.
+     * All repaints requested before the next animation frame are batched.
+     * If a dirty tile is specified, only that tile needs to be repainted, 
+     * otherwise the entire canvas is repainted.
+     */
+    _requestRepaint: function(dirtyTile) {
+      if (dirtyTile && this.dirtyTiles) {
+        this.dirtyTiles.push(dirtyTile);
+      } else {
+        this.dirtyTiles = null;
+      }
+      
+      if (!this.repaintRequested) {
+        this.repaintRequested = true;
+        var reqAnimFrame = window.requestAnimationFrame       ||
+                           window.mozRequestAnimationFrame    ||
+                           window.webkitRequestAnimationFrame ||
+                           window.msRequestAnimationFrame     ||
+                           window.oRequestAnimationFrame      ||
+                           function(callback) { setTimeout(callback, 16); };
+        reqAnimFrame.call(window, $.proxy(this._onAnimationFrame, this));
+      }
+    },
+    
+    /**
+     * Called upon the animation frame scheduled by _requestRepaint()
      */
-    _requestRepaint: function() {
-      reqAnimFrame = window.mozRequestAnimationFrame    ||
-                     window.webkitRequestAnimationFrame ||
-                     window.msRequestAnimationFrame     ||
-                     window.oRequestAnimationFrame;
-      reqAnimFrame($.proxy(this._repaintZoomLevel, this));
+    _onAnimationFrame: function() {
+      var dirtyTiles = this.dirtyTiles;
+      this.dirtyTiles = [];
+      this.repaintRequested = false;
+      if (!dirtyTiles) {
+        this._repaintZoomLevel();
+      } else if (dirtyTiles.length > 0) {
+        this._repaintZoomLevel(dirtyTiles);
+      }
+    },
+    
+    /**
+     * Returns the canvas rectangle of the given tile at the current zoom level
+     */
+    _computeTileRect: function(x, y) {
+      var zoomLevel = this.zoomLevels[this.level];
+      var w = Math.min(this.tileSize, zoomLevel.imageWidth  - x * this.tileSize),
+          h = Math.min(this.tileSize, zoomLevel.imageHeight - y * this.tileSize);
+      return {
+        x: this._floor(this.offset.x + x * this.tileSize * this.scale),
+        y: this._floor(this.offset.y + y * this.tileSize * this.scale),
+        w: this._ceil(w * this.scale) + 1,
+        h: this._ceil(h * this.scale) + 1
+      };
+    },
+    
+    /**
+     * Returns if the given rectangles intersects
+     */
+    _intersects: function(r1, r2) {
+      return r1.x < r2.x + r2.w && r2.x < r1.x + r1.w &&
+             r1.y < r2.y + r2.h && r2.y < r1.y + r1.h;
     },
 
     /**
-     * Repaints the current zoom level
+     * Repaints the current zoom level.
+     * If a list of dirty tiles is specified, the repaint is clipped
+     * to these tiles, otherwise the entire canvas is repainted.
      */
-    _repaintZoomLevel: function() {
+    _repaintZoomLevel: function(dirtyTiles) {
       this.lastRepaintTime = new Date().getTime();
-    
-      // Clear the canvas
-      if (this.background) {
-        this.context.fillStyle = this.background;
-        this.context.fillRect (0, 0, this.width, this.height);
-      } else {
-        this.context.clearRect (0, 0, this.width, this.height);
+      
+      // Only full repaints start a new frame, so that the tiles painted 
+      // in the current frame are the visible tiles
+      if (!dirtyTiles) {
+        this.frameNo++;
       }
     
       // Adjust the image offset to center an image smaller than the canvas
@@ -966,6 +1199,28 @@
       // Compute the tiles that should be reloaded
       var tiles = this._computeRepaintTiles();
       var zoomLevel = this.zoomLevels[this.level];
+      
+      // Clip to the dirty tiles
+      var dirtyRects = null;
+      this.context.save();
+      if (dirtyTiles) {
+        dirtyRects = [];
+        this.context.beginPath();
+        for (var i = 0; i < dirtyTiles.length; i++) {
+          var rect = this._computeTileRect(dirtyTiles[i].x, dirtyTiles[i].y);
+          dirtyRects.push(rect);
+          this.context.rect(rect.x, rect.y, rect.w, rect.h);
+        }
+        this.context.clip();
+      }
+    
+      // Clear the canvas
+      if (this.background) {
+        this.context.fillStyle = this.background;
+        this.context.fillRect (0, 0, this.width, this.height);
+      } else {
+        this.context.clearRect (0, 0, this.width, this.height);
+      }
 
       if (this.thumbImage) {
           var factor = this.thumbImage.width / (zoomLevel.imageWidth * this.scale);
@@ -984,17 +1239,25 @@
       
       for (var y = tiles.y; y < tiles.y + tiles.h; y++) {
         for (var x = tiles.x; x < tiles.x + tiles.w; x++) {
-          var img = this._getImage(zoomLevel, x, y);
-          if (img) {
+          if (dirtyRects && !this._intersectsAny(this._computeTileRect(x, y), dirtyRects)) {
+            continue;
+          }
+          var tile = this._getCachedTile(zoomLevel, x, y);
+          if (tile) {
+            var img = tile.image;
             var imageX = x * this.tileSize;
             var imageY = y * this.tileSize;
+            // A low-quality tile is downsampled, and is scaled to the full tile size
+            var w = (tile.lowQuality) ? Math.min(this.tileSize, zoomLevel.imageWidth - imageX)  : img.width;
+            var h = (tile.lowQuality) ? Math.min(this.tileSize, zoomLevel.imageHeight - imageY) : img.height;
             this.context.drawImage(
               img, 
               this._floor(this.offset.x + imageX * this.scale),
               this._floor(this.offset.y + imageY * this.scale),
-              this._ceil(img.width * this.scale),
-              this._ceil(img.height * this.scale));
-          } else {
+              this._ceil(w * this.scale),
+              this._ceil(h * this.scale));
+          }
+          if (!tile || (tile.lowQuality && !this.moving)) {
             // Start loading the image
             this._loadImage(zoomLevel, x, y);
           }
@@ -1017,20 +1280,38 @@
         this._repaintToolbar();
       }
       
-      // Un-cache images outside the the current tile set
-      this._releaseImagesOutsideTiles(zoomLevel, tiles);
-      
       if (this.trace) {
         var txt = "size " + this.width + ", " + this.height
                 + ", scale=" + this.scale.toFixed(2) + ", level=" + this.level
                 + ", tiles=(" + tiles.x + "," + tiles.y + "," + tiles.w + "," + tiles.h 
-                + "), cached images=" + this._countCachedImageNo();
+                + "), cached images=" + this._countCachedImageNo()
+                + ", cached MB=" + (this.cachedBytes / (1024 * 1024)).toFixed(1);
         var metrics = this.context.measureText(txt);
         this.context.fillStyle = "rgba(200,200,200,0.5)";
         this.context.fillRect (0, 0, parseInt(metrics.width) + 15, 15);
         this.context.fillStyle = "black";
         this.context.fillText(txt, 10, 10);
       }
+      this.context.restore();
+      
+      // Cancel loading images outside the the current tile set, 
+      // and keep the decoded images within the cache budget
+      if (!dirtyTiles) {
+        this._cancelLoadingOutsideTiles(zoomLevel, tiles);
+        this._enforceCacheBudget();
+      }
+    },
+    
+    /**
+     * Returns if the given rectangle intersects any of the rectangles
+     */
+    _intersectsAny: function(rect, rects) {
+      for (var i = 0; i < rects.length; i++) {
+        if (this._intersects(rect, rects[i])) {
+          return true;
+        }
+      }
+      return false;
     },
     
     /**